@@ -0,0 +1,73 @@
+package editor.bench;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+
+// Checks that the input thread allocates nothing in steady state: for a frame that changes
+// nothing, for an arrow key moving the cursor and the frame showing it, which rebuilds the
+// status bar, and for a frame showing the find prompt's match count. Each is run until the JIT
+// compiled it, then the bytes the thread allocated are counted over ROUNDS more. Scrolling is
+// counted too, but only printed: a view that moves hands a snapshot to the highlighter.
+//
+//   java -cp benchmarks/target/benchmarks.jar editor.bench.AllocationCheck
+public final class AllocationCheck {
+    private static final int WARMUP = 20_000;
+    private static final int ROUNDS = 2_000;
+
+    private AllocationCheck() {
+    }
+
+    private interface Step {
+        void run(int round) throws Throwable;
+    }
+
+    public static void main(String[] args) throws Throwable {
+        Editor.start(Corpus.file("16KB", ".c"));
+        MethodHandles.Lookup main = Editor.MAIN;
+        int left = (int) main.findStaticGetter(main.lookupClass(), "ARROW_LEFT", int.class)
+            .invokeExact();
+        int right = (int) main.findStaticGetter(main.lookupClass(), "ARROW_RIGHT", int.class)
+            .invokeExact();
+        int lines = Editor.lineCount();
+
+        boolean failed = false;
+        Editor.moveTo(3, 2);
+        failed |= check("unchanged frame", true, round -> {
+            Editor.REFRESH_SCREEN.invokeExact();
+        });
+        failed |= check("arrow key", true, round -> {
+            Editor.HANDLE_KEY.invokeExact((round & 1) == 0 ? right : left);
+            Editor.REFRESH_SCREEN.invokeExact();
+        });
+        failed |= check("scrolling by rows", false, round -> {
+            Editor.moveTo(23 + round % (lines - 23), 0);
+            Editor.REFRESH_SCREEN.invokeExact();
+        });
+        Editor.moveTo(0, 0);
+        Editor.find(Corpus.WORD, false);
+        failed |= check("frame with a match count", true, round -> {
+            Editor.REFRESH_SCREEN.invokeExact();
+        });
+        if (failed) {
+            throw new AssertionError("the input thread allocates in steady state");
+        }
+        System.out.println("ok");
+    }
+
+    // prints the bytes step allocates per round, returns whether it should allocate none and did
+    private static boolean check(String name, boolean none, Step step) throws Throwable {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int round = 0; round < WARMUP; round++) {
+            step.run(round);
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int round = 0; round < ROUNDS; round++) {
+            step.run(round);
+        }
+        double bytes = (double) (threads.getCurrentThreadAllocatedBytes() - before) / ROUNDS;
+        System.out.printf("%-26s %8.1f B%n", name, bytes);
+        // the counter allocates itself now and then, a byte per round is more than that
+        return none && bytes >= 1;
+    }
+}
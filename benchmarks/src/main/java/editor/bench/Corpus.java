@@ -0,0 +1,135 @@
+package editor.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+
+// Generated source files, from 1KB to 1GB, kept in the temporary directory so later runs reuse
+// them. The text is C or Java with the things the highlighter looks for: keywords, numbers,
+// strings, line comments and comments spanning rows.
+final class Corpus {
+    // rows matching it, and the regex, are one in WORD_INTERVAL
+    static final String WORD = "checksum";
+    static final String REGEX = "checksum\\(v[0-9]*7\\)";
+    private static final int WORD_INTERVAL = 50;
+    private static final Path DIRECTORY =
+        Path.of(System.getProperty("java.io.tmpdir"), "editor-bench");
+
+    private Corpus() {
+    }
+
+    // the file of size, like "64MB", with extension ".c" or ".java"
+    static Path file(String size, String extension) throws IOException {
+        long bytes = parseSize(size);
+        Path file = DIRECTORY.resolve("corpus-" + size + extension);
+        if (Files.exists(file) && Files.size(file) == bytes) {
+            return file;
+        }
+        return generate(file, bytes, Long.MAX_VALUE, extension);
+    }
+
+    // the file of count rows, with extension ".c" or ".java"
+    static Path rows(int count, String extension) throws IOException {
+        Path file = DIRECTORY.resolve("corpus-" + count + "-rows" + extension);
+        if (Files.exists(file)) {
+            return file;
+        }
+        return generate(file, Long.MAX_VALUE, count, extension);
+    }
+
+    private static Path generate(Path file, long bytes, long rows, String extension)
+        throws IOException {
+        Files.createDirectories(DIRECTORY);
+        Path temp = Files.createTempFile(DIRECTORY, "corpus", extension);
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.US_ASCII)) {
+            write(writer, bytes, rows, extension.equals(".java"));
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    // a copy of the file of size that benchmarks may change
+    static Path copy(String size, String extension) throws IOException {
+        return copy(file(size, extension), extension);
+    }
+
+    // a copy of a file of the corpus that benchmarks may change
+    static Path copy(Path file, String extension) throws IOException {
+        Path copy = Files.createTempFile("editor-bench", extension);
+        Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING);
+        copy.toFile().deleteOnExit();
+        // what the editor keeps next to it: the undo history, and the journal and its copy
+        // written while compacting
+        for (String sidecar : List.of(".undo", ".journal", ".journal.tmp")) {
+            copy.resolveSibling("." + copy.getFileName() + sidecar).toFile().deleteOnExit();
+        }
+        return copy;
+    }
+
+    static long parseSize(String size) {
+        String unit = size.toUpperCase(Locale.ROOT).replaceAll("[0-9]", "");
+        long count = Long.parseLong(size.substring(0, size.length() - unit.length()));
+        return switch (unit) {
+            case "B" -> count;
+            case "KB" -> count << 10;
+            case "MB" -> count << 20;
+            case "GB" -> count << 30;
+            default -> throw new IllegalArgumentException("size " + size);
+        };
+    }
+
+    // Code until bytes or rowCount rows are written, whichever comes first. The last row is cut
+    // to make the size exact, or the last rows left out to make the count exact.
+    private static void write(BufferedWriter writer, long bytes, long rowCount, boolean java)
+        throws IOException {
+        String type = java ? "long" : "unsigned long";
+        String print = java ? "System.out.println" : "printf";
+        StringBuilder rows = new StringBuilder();
+        long written = 0;
+        long rowsWritten = 0;
+        for (int i = 0; written < bytes && rowsWritten < rowCount; i++) {
+            rows.setLength(0);
+            switch (i % 8) {
+                case 0 -> rows.append("/* block ").append(i).append(" starts here\n")
+                    .append("   and spans two rows */\n");
+                case 1 -> rows.append(type).append(" v").append(i).append(" = ").append(i * 31L)
+                    .append(";\n");
+                case 2 -> rows.append("if (v").append(i - 1).append(" > 0x").append(
+                    Integer.toHexString(i)).append(") { v").append(i - 1).append("--; }\n");
+                case 3 -> rows.append(print).append("(\"row ").append(i)
+                    .append(" of the corpus\\n\"); // a line comment\n");
+                case 4 -> rows.append("for (int j = 0; j < ").append(i % 100)
+                    .append("; j++) { total += j * 1.5; }\n");
+                case 5 -> rows.append("while (v").append(i - 4).append(" != 0) { v")
+                    .append(i - 4).append(" >>= 1; }\n");
+                case 6 -> rows.append("return '").append((char) ('a' + i % 26))
+                    .append("' + v").append(i - 5).append(";\n");
+                default -> rows.append("\n");
+            }
+            if (i % WORD_INTERVAL == 0) {
+                rows.append(WORD).append("(v").append(i).append(");\n");
+            }
+            int length = (int) Math.min(rows.length(), bytes - written);
+            if (length < rows.length()) {
+                // the last row still ends the file with a line break
+                rows.setLength(length);
+                if (length > 0) {
+                    rows.setCharAt(length - 1, '\n');
+                }
+            }
+            for (int at = 0; at < length; at++) {
+                if (rows.charAt(at) == '\n' && ++rowsWritten == rowCount) {
+                    length = at + 1;
+                }
+            }
+            writer.append(rows, 0, length);
+            written += length;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package editor.bench;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Keys typed in the middle of a file. Typing only grows the file, each iteration starts again
+// from the file as generated. A backspace needs something to delete, so it is measured after
+// the key that typed it.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class EditBenchmark {
+    @Param({"1KB", "1MB", "32MB"})
+    String size;
+
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void start() throws Throwable {
+        file = Corpus.copy(size, ".c");
+        Editor.start(file);
+    }
+
+    @Setup(Level.Iteration)
+    public void reopen() throws Throwable {
+        Editor.open(file);
+        Editor.moveTo(Editor.lineCount() / 2, 0);
+    }
+
+    @Benchmark
+    public void insertChar() throws Throwable {
+        Editor.INSERT_CHAR.invokeExact((int) 'x');
+    }
+
+    @Benchmark
+    public void insertRow() throws Throwable {
+        Editor.INSERT_ROW.invokeExact();
+    }
+
+    @Benchmark
+    public void insertCharThenDeleteChar() throws Throwable {
+        Editor.INSERT_CHAR.invokeExact((int) 'x');
+        backspace();
+    }
+
+    @Benchmark
+    public void insertRowThenDeleteChar() throws Throwable {
+        Editor.INSERT_ROW.invokeExact();
+        backspace();
+    }
+
+    private static void backspace() throws Throwable {
+        int cy = (int) Editor.CY.get();
+        int cx = (int) Editor.CX.get();
+        Editor.DELETE_CHAR.invokeExact(Editor.DELETE_BACKWARD, cy, cx);
+    }
+}
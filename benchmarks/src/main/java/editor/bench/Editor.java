@@ -0,0 +1,209 @@
+package editor.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+
+// The editor's classes are package-private, in the unnamed package the benchmarks can't be in,
+// so they are reached through method handles looked up with Main's private access. The editor
+// keeps its state in static fields of Main, JMH gives every benchmark a JVM of its own.
+final class Editor {
+    static final MethodHandles.Lookup MAIN;
+    static final MethodHandle INSERT_CHAR;
+    static final MethodHandle INSERT_ROW;
+    static final MethodHandle DELETE_CHAR;
+    static final MethodHandle REFRESH_SCREEN;
+    static final MethodHandle UPDATE_HIGHLIGHT;
+    static final MethodHandle REQUEST_HIGHLIGHT;
+    static final MethodHandle HIGHLIGHT_PENDING;
+    static final MethodHandle AWAIT_HIGHLIGHT;
+    static final MethodHandle EDITOR_OPEN;
+    static final MethodHandle EDITOR_SAVE;
+    static final MethodHandle UPDATE_SAVE_STATUS;
+    static final MethodHandle UPDATE_SEARCH;
+    static final MethodHandle END_SEARCH;
+    static final MethodHandle FIND_CONSUMER;
+    static final MethodHandle LINE_COUNT;
+    static final MethodHandle READ_KEY;
+    static final MethodHandle HANDLE_KEY;
+    static final MethodHandle REFRESH_SCREEN_UNTIL_KEY;
+    static final VarHandle CX;
+    static final VarHandle CY;
+    static final VarHandle DOCUMENT;
+    static final VarHandle SAVER;
+    static final VarHandle SEARCHING;
+    static final VarHandle REGEX_SEARCH;
+    static final VarHandle KEYS_READ;
+    static final VarHandle FRAMES_DRAWN;
+    // kind of the edits made with backspace
+    static final int DELETE_BACKWARD;
+    // bytes of the frames drawn so far
+    static long written;
+
+    static {
+        try {
+            Class<?> main = Class.forName("Main");
+            MAIN = MethodHandles.privateLookupIn(main, MethodHandles.lookup());
+            INSERT_CHAR = method("insertChar", void.class, int.class);
+            INSERT_ROW = method("insertRow", void.class);
+            DELETE_CHAR = method("deleteChar", void.class, int.class, int.class, int.class);
+            REFRESH_SCREEN = method("refreshScreen", void.class);
+            UPDATE_HIGHLIGHT = method("editorUpdateHighlight", void.class);
+            REQUEST_HIGHLIGHT = method("requestHighlight", void.class, int.class, int.class);
+            HIGHLIGHT_PENDING = method("highlightPending", boolean.class);
+            AWAIT_HIGHLIGHT = method("awaitHighlight", boolean.class, long.class);
+            EDITOR_OPEN = method("editorOpen", void.class, String.class);
+            EDITOR_SAVE = method("editorSave", void.class);
+            UPDATE_SAVE_STATUS = method("updateSaveStatus", boolean.class);
+            UPDATE_SEARCH = method("updateSearch", boolean.class);
+            END_SEARCH = method("endSearch", void.class);
+            FIND_CONSUMER = method("getEditFindConsumer", BiConsumer.class);
+            READ_KEY = method("readKey", int.class);
+            HANDLE_KEY = method("handleKey", void.class, int.class);
+            REFRESH_SCREEN_UNTIL_KEY = method("refreshScreenUntilKey", void.class);
+            Class<?> document = Class.forName("Document");
+            LINE_COUNT = MAIN.findVirtual(document, "lineCount", MethodType.methodType(int.class))
+                .asType(MethodType.methodType(int.class, Object.class));
+            CX = MAIN.findStaticVarHandle(main, "cx", int.class);
+            CY = MAIN.findStaticVarHandle(main, "cy", int.class);
+            DOCUMENT = MAIN.findStaticVarHandle(main, "document", document);
+            SAVER = MAIN.findStaticVarHandle(main, "saver", Thread.class);
+            SEARCHING = MAIN.findStaticVarHandle(main, "searching", Class.forName("SearchTask"));
+            REGEX_SEARCH = MAIN.findStaticVarHandle(main, "regexSearch", boolean.class);
+            KEYS_READ = MAIN.findStaticVarHandle(main, "keysRead", long.class);
+            FRAMES_DRAWN = MAIN.findStaticVarHandle(main, "framesDrawn", long.class);
+            Class<?> history = Class.forName("UndoHistory");
+            DELETE_BACKWARD = (int) MethodHandles.privateLookupIn(history, MethodHandles.lookup())
+                .findStaticGetter(history, "DELETE_BACKWARD", int.class).invokeExact();
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Editor() {
+    }
+
+    private static MethodHandle method(String name, Class<?> returnType, Class<?>... parameters)
+        throws ReflectiveOperationException {
+        return MAIN.findStatic(MAIN.lookupClass(), name,
+            MethodType.methodType(returnType, parameters));
+    }
+
+    private static void set(String field, Class<?> type, Object value)
+        throws ReflectiveOperationException {
+        MAIN.findStaticVarHandle(MAIN.lookupClass(), field, type).set(value);
+    }
+
+    // Starts the editor on file as main does, on a 24 by 80 screen, without touching the
+    // terminal: frames are drawn into a channel counting their bytes in written and dropping
+    // them.
+    static void start(Path file) throws Throwable {
+        Class<?> main = MAIN.lookupClass();
+        set("windowSize", String.class, "24 80");
+        set("fileName", String.class, file.toString());
+        Class<?> output = Class.forName("TerminalOutput");
+        Object terminal = MAIN.findConstructor(output,
+            MethodType.methodType(void.class, WritableByteChannel.class))
+            .invoke(new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer bytes) {
+                    int length = bytes.remaining();
+                    bytes.position(bytes.limit());
+                    written += length;
+                    return length;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        MAIN.findStaticVarHandle(main, "terminal", output).set(terminal);
+        method("initEditor", void.class).invoke();
+        open(file);
+        method("initHighlight", void.class).invoke();
+    }
+
+    static void open(Path file) throws Throwable {
+        EDITOR_OPEN.invokeExact(file.toString());
+    }
+
+    // Runs the editor's loop on keys as if they were typed at once: frames are drawn as the
+    // keys are read and handled, until they are all handled and the last frame is drawn.
+    static void type(byte[] keys) throws Throwable {
+        Class<?> input = Class.forName("TerminalInput");
+        Object keyboard = MAIN.findConstructor(input,
+            MethodType.methodType(void.class, InputStream.class))
+            .invoke(new ByteArrayInputStream(keys));
+        MAIN.findStaticVarHandle(MAIN.lookupClass(), "keyboard", input).set(keyboard);
+        MethodHandle available = MAIN.findVirtual(input, "available",
+            MethodType.methodType(int.class));
+        while (true) {
+            REFRESH_SCREEN_UNTIL_KEY.invokeExact();
+            if ((int) available.invoke(keyboard) == 0) {
+                return;
+            }
+            HANDLE_KEY.invokeExact((int) READ_KEY.invokeExact());
+        }
+    }
+
+    static int lineCount() throws Throwable {
+        return (int) LINE_COUNT.invokeExact(DOCUMENT.get());
+    }
+
+    static void moveTo(int row, int col) {
+        CY.set(row);
+        CX.set(col);
+    }
+
+    // highlights rows [from, to] as the screen would ask for them, and waits until they are
+    static void highlight(int from, int to) throws Throwable {
+        REQUEST_HIGHLIGHT.invokeExact(from, to);
+        while ((boolean) HIGHLIGHT_PENDING.invokeExact()) {
+            AWAIT_HIGHLIGHT.invoke(1L);
+        }
+    }
+
+    // saves the file and waits for the saver thread, which small files may have seen finish
+    // before editorSave returns
+    static void save() throws Throwable {
+        EDITOR_SAVE.invokeExact();
+        Thread saver = (Thread) SAVER.get();
+        if (saver != null) {
+            saver.join();
+            UPDATE_SAVE_STATUS.invoke();
+        }
+    }
+
+    // types query into the find prompt and waits until its matches are shown
+    static void find(String query, boolean regex) throws Throwable {
+        END_SEARCH.invokeExact();
+        REGEX_SEARCH.set(regex);
+        narrow(query);
+    }
+
+    // types the last char of query into the find prompt holding the rest of it, which narrows
+    // the matches of the query before, and waits until its matches are shown
+    @SuppressWarnings("unchecked")
+    static void narrow(String query) throws Throwable {
+        BiConsumer<String, Integer> prompt = (BiConsumer<String, Integer>) FIND_CONSUMER.invoke();
+        prompt.accept(query, (int) query.charAt(query.length() - 1));
+        Object searching = SEARCHING.get();
+        if (searching != null) {
+            ((ForkJoinTask<?>) searching).quietlyJoin();
+            UPDATE_SEARCH.invoke();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package editor.bench;
+
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// editorOpen and editorSave. Files from 64MB on are mapped read-only, they are opened but
+// can't be saved. A save waits for the saver thread, which forces the file to disk. For
+// comparison, the save as it was before writeFile, appending every row to the file with a
+// Files.writeString of its own, and the encoding of a save without the disk: the text written
+// through the saver's ChannelWriter into a channel dropping the bytes. MB/s is the size over
+// the score.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FileBenchmark {
+    private static final MethodHandle LINE_LENGTH;
+    private static final MethodHandle GET_CHARS;
+    private static final MethodHandle WRITE_TO;
+    private static final MethodHandle CHANNEL_WRITER;
+    private static final int SAVE_BUFFER_SIZE;
+
+    static {
+        try {
+            Class<?> document = Class.forName("Document");
+            LINE_LENGTH = virtual(document, "lineLength", int.class, int.class);
+            GET_CHARS = virtual(document, "getChars", void.class, int.class, int.class,
+                int.class, char[].class, int.class);
+            WRITE_TO = virtual(document, "writeTo", void.class, Writer.class, String.class);
+            CHANNEL_WRITER = Editor.MAIN.findConstructor(Class.forName("ChannelWriter"),
+                MethodType.methodType(void.class, WritableByteChannel.class, Charset.class,
+                    int.class, AtomicLong.class))
+                .asType(MethodType.methodType(Writer.class, WritableByteChannel.class,
+                    Charset.class, int.class, AtomicLong.class));
+            SAVE_BUFFER_SIZE = (int) Editor.MAIN.findStaticGetter(Editor.MAIN.lookupClass(),
+                "SAVE_BUFFER_SIZE", int.class).invokeExact();
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle virtual(Class<?> document, String name, Class<?> returnType,
+        Class<?>... parameters) throws ReflectiveOperationException {
+        MethodHandle handle = Editor.MAIN.findVirtual(document, name,
+            MethodType.methodType(returnType, parameters));
+        return handle.asType(handle.type().changeParameterType(0, Object.class));
+    }
+
+    @State(Scope.Benchmark)
+    public static class Opened {
+        @Param({"1KB", "1MB", "32MB", "1GB"})
+        String size;
+
+        Path file;
+
+        @Setup(Level.Trial)
+        public void start() throws Throwable {
+            file = Corpus.file(size, ".c");
+            Editor.start(file);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Edited {
+        @Param({"1KB", "1MB", "32MB"})
+        String saveSize;
+
+        Path file;
+
+        @Setup(Level.Trial)
+        public void start() throws Throwable {
+            file = Corpus.copy(saveSize, ".c");
+            Editor.start(file);
+        }
+    }
+
+    @Benchmark
+    public void editorOpen(Opened state) throws Throwable {
+        Editor.open(state.file);
+    }
+
+    @Benchmark
+    public void editorSave(Edited state) throws Throwable {
+        Editor.save();
+    }
+
+    @Benchmark
+    public void saveRowByRow(Edited state) throws Throwable {
+        Object document = Editor.DOCUMENT.get();
+        int lines = Editor.lineCount();
+        char[] row = new char[256];
+        Files.deleteIfExists(state.file);
+        for (int line = 0; line < lines; line++) {
+            int length = (int) LINE_LENGTH.invokeExact(document, line);
+            if (row.length < length) {
+                row = new char[length * 2];
+            }
+            GET_CHARS.invokeExact(document, line, 0, length, row, 0);
+            Files.writeString(state.file, new String(row, 0, length) + System.lineSeparator(),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    @Benchmark
+    public long encode(Edited state) throws Throwable {
+        AtomicLong written = new AtomicLong();
+        Writer writer = (Writer) CHANNEL_WRITER.invokeExact((WritableByteChannel) new Dropped(),
+            (Charset) StandardCharsets.UTF_8, SAVE_BUFFER_SIZE, written);
+        WRITE_TO.invokeExact(Editor.DOCUMENT.get(), writer, System.lineSeparator());
+        writer.close();
+        return written.get();
+    }
+
+    // a channel dropping what is written to it
+    private static final class Dropped implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer bytes) {
+            int length = bytes.remaining();
+            bytes.position(bytes.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
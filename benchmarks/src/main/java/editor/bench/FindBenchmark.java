@@ -0,0 +1,53 @@
+package editor.bench;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A query typed into the find prompt of editorFind, from the key to its first match shown.
+// Matches of earlier queries are dropped first, so the whole file is searched every time.
+// Files from 64MB on are mapped rather than loaded. The search runs on the common fork/join
+// pool, whose parallelism is set in setup, before the pool is made, as each set of params
+// runs in a JVM of its own. A parallelism above the number of cores only adds threads.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class FindBenchmark {
+    @Param({"1KB", "1MB", "32MB", "1GB"})
+    String size;
+
+    @Param({"false", "true"})
+    boolean regex;
+
+    @Param({"1", "2", "4", "8"})
+    int parallelism;
+
+    @Setup(Level.Trial)
+    public void start() throws Throwable {
+        System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism",
+            Integer.toString(parallelism));
+        if (ForkJoinPool.commonPool().getParallelism() != parallelism) {
+            throw new IllegalStateException("the common pool was made before setup");
+        }
+        Editor.start(Corpus.file(size, ".c"));
+    }
+
+    @Benchmark
+    public void find() throws Throwable {
+        Editor.find(regex ? Corpus.REGEX : Corpus.WORD, regex);
+    }
+}
@@ -0,0 +1,50 @@
+package editor.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Path;
+
+// Counts the heap the editor keeps for a generated Java file of size, 100MB unless given: once
+// it is open, and once the last screen is highlighted, which lexes every row above it. Files
+// from 64MB on are mapped, smaller ones are loaded. Highlights are kept for the rows near the
+// screen only, so the check fails if highlighting keeps more than HIGHLIGHT_LIMIT, whatever
+// the size of the file.
+//
+//   java -cp benchmarks/target/benchmarks.jar editor.bench.HeapCheck [size]
+public final class HeapCheck {
+    private static final long HIGHLIGHT_LIMIT = 16 << 20;
+
+    private HeapCheck() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        String size = args.length > 0 ? args[0] : "100MB";
+        Path file = Corpus.file(size, ".java");
+        long before = heapAfterGc();
+        Editor.start(file);
+        long opened = heapAfterGc();
+        int lastRow = Editor.lineCount() - 1;
+        Editor.moveTo(lastRow, 0);
+        Editor.highlight(Math.max(0, lastRow - 22), lastRow);
+        long highlighted = heapAfterGc();
+
+        System.out.printf("%s file, %,d rows%n", size, lastRow + 1);
+        System.out.printf("document       %6.1f MB%n", (opened - before) / 1e6);
+        System.out.printf("highlighting   %6.1f MB%n", (highlighted - opened) / 1e6);
+        if (highlighted - opened > HIGHLIGHT_LIMIT) {
+            throw new AssertionError("highlighting keeps more than " + (HIGHLIGHT_LIMIT >> 20) +
+                " MB");
+        }
+        System.out.println("ok");
+    }
+
+    // heap in use once the garbage is collected
+    private static long heapAfterGc() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,47 @@
+package editor.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The worst case of editorUpdateHighlight: every highlight is dropped, as when a comment is
+// opened on the first row, and the last screen of the file is shown, whose comment state is
+// only known after lexing every row above it. Runs the highlighter thread's job for the C and
+// the Java entry of HLDB, picked by the file's extension.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class HighlightBenchmark {
+    @Param({"c", "java"})
+    String syntax;
+
+    @Param({"1KB", "1MB", "32MB"})
+    String size;
+
+    private int lastRow;
+
+    @Setup(Level.Trial)
+    public void start() throws Throwable {
+        Editor.start(Corpus.file(size, "." + syntax));
+        lastRow = Editor.lineCount() - 1;
+    }
+
+    @Benchmark
+    public void highlightFromTop() throws Throwable {
+        Editor.UPDATE_HIGHLIGHT.invokeExact();
+        Editor.highlight(Math.max(0, lastRow - 22), lastRow);
+    }
+}
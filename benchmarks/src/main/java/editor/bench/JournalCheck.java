@@ -0,0 +1,112 @@
+package editor.bench;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Checks that the journal survives a save with edits made while it runs: edit, save, edit
+// more, compact the log to the saved file, edit again, then recover and replay the log onto
+// the saved file. The compaction reads back the records written after the save started.
+// Then that a damaged log gives back the edits before the damage: a torn length as large as
+// 2^30, and a record for a row the file doesn't have.
+//
+//   java -cp benchmarks/target/benchmarks.jar editor.bench.JournalCheck
+public final class JournalCheck {
+    private JournalCheck() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        Class<?> journal = Class.forName("Journal");
+        Class<?> document = Class.forName("Document");
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(journal,
+            MethodHandles.lookup());
+        MethodHandle open = lookup.findStatic(journal, "open",
+            MethodType.methodType(journal, Path.class, ByteBuffer.class));
+        MethodHandle recover = lookup.findStatic(journal, "recover",
+            MethodType.methodType(ByteBuffer.class, Path.class));
+        MethodHandle replay = lookup.findStatic(journal, "replay",
+            MethodType.methodType(int.class, ByteBuffer.class, document));
+        MethodHandle insert = lookup.findVirtual(journal, "insert",
+            MethodType.methodType(void.class, int.class, int.class, CharSequence.class));
+        MethodHandle mark = lookup.findVirtual(journal, "mark", MethodType.methodType(long.class));
+        MethodHandle compact = lookup.findVirtual(journal, "compact",
+            MethodType.methodType(void.class, long.class));
+        MethodHandle close = lookup.findVirtual(journal, "close",
+            MethodType.methodType(void.class));
+        MethodHandle failed = lookup.findVirtual(journal, "failed",
+            MethodType.methodType(boolean.class));
+        MethodHandle path = lookup.findVirtual(journal, "path", MethodType.methodType(Path.class));
+        Class<?> pieceTable = Class.forName("PieceTable");
+        MethodHandle load = MethodHandles.privateLookupIn(pieceTable, MethodHandles.lookup())
+            .findStatic(pieceTable, "load", MethodType.methodType(pieceTable, Path.class));
+        MethodHandle writeTo = lookup.findVirtual(document, "writeTo",
+            MethodType.methodType(void.class, Writer.class, String.class));
+
+        Path file = Files.createTempFile("editor-journal", ".c");
+        try {
+            Files.writeString(file, "int a;\n");
+            Object log = open.invoke(file, null);
+            insert.invoke(log, 0, 6, " int b;");
+            long saveMark = (long) mark.invoke(log);
+            // the save writes the file while editing goes on
+            Files.writeString(file, "int a; int b;\n");
+            insert.invoke(log, 0, 13, " int c;");
+            // lets the writer thread write the record before compacting, as a slow save would
+            Thread.sleep(200);
+            compact.invoke(log, saveMark);
+            insert.invoke(log, 0, 20, " int d;");
+            close.invoke(log);
+            if ((boolean) failed.invoke(log)) {
+                throw new AssertionError("the journal failed");
+            }
+
+            ByteBuffer records = (ByteBuffer) recover.invoke(file);
+            if (records == null) {
+                throw new AssertionError("no journal to recover");
+            }
+            Object text = load.invoke(file);
+            replay.invoke(records, text);
+            StringWriter recovered = new StringWriter();
+            writeTo.invoke(text, recovered, "\n");
+            String expected = "int a; int b; int c; int d;\n";
+            if (!recovered.toString().equals(expected)) {
+                throw new AssertionError("recovered " + recovered + ", expected " + expected);
+            }
+            Path logPath = (Path) path.invoke(log);
+
+            // the same log with a record torn after its length, then one for row 100
+            ByteBuffer intact = ByteBuffer.wrap(Files.readAllBytes(logPath));
+            ByteBuffer torn = ByteBuffer.allocate(intact.remaining() + 13)
+                .put(intact.duplicate()).put((byte) 1).putInt(0).putInt(0).putInt(1 << 30);
+            Files.write(logPath, torn.array());
+            records = (ByteBuffer) recover.invoke(file);
+            if (records == null || records.limit() != intact.remaining() - 20) {
+                throw new AssertionError("a torn record is not cut off");
+            }
+            ByteBuffer farRow = ByteBuffer.allocate(intact.remaining() + 13)
+                .put(intact.duplicate()).put((byte) 2).putInt(100).putInt(0).putInt(1);
+            Files.write(logPath, farRow.array());
+            records = (ByteBuffer) recover.invoke(file);
+            text = load.invoke(file);
+            int applied = (int) replay.invoke(records, text);
+            if (applied != records.limit() - 13) {
+                throw new AssertionError("replayed " + applied + " of " + records.limit() +
+                    " bytes, the record for row 100 doesn't fit");
+            }
+            recovered = new StringWriter();
+            writeTo.invoke(text, recovered, "\n");
+            if (!recovered.toString().equals(expected)) {
+                throw new AssertionError("recovered " + recovered + ", expected " + expected);
+            }
+            Files.deleteIfExists(logPath);
+            System.out.println("ok");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
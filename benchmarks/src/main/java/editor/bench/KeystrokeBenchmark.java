@@ -0,0 +1,55 @@
+package editor.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One key typed at the start of a row in the middle of a file of rows rows, and the highlights
+// of the screen around it, which the edit made stale, lexed again: what a keystroke costs
+// before its frame is drawn. Keys alternate between a char and the backspace taking it back,
+// so the file stays the same size.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class KeystrokeBenchmark {
+    private static final int ROWS = 23;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int rows;
+
+    private int row;
+    private boolean typed;
+
+    @Setup(Level.Trial)
+    public void start() throws Throwable {
+        Editor.start(Corpus.copy(Corpus.rows(rows, ".c"), ".c"));
+        row = rows / 2;
+        Editor.moveTo(row, 0);
+        Editor.highlight(row - ROWS / 2, row + ROWS / 2);
+    }
+
+    @Benchmark
+    public void keyThenHighlight() throws Throwable {
+        if (typed) {
+            int cx = (int) Editor.CX.get();
+            Editor.DELETE_CHAR.invokeExact(Editor.DELETE_BACKWARD, row, cx);
+        } else {
+            Editor.INSERT_CHAR.invokeExact((int) 'x');
+        }
+        typed = !typed;
+        Editor.highlight(row - ROWS / 2, row + ROWS / 2);
+    }
+}
@@ -0,0 +1,144 @@
+package editor.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The lexer alone, over every row of a 1MB file: highlightLine as the highlighter thread
+// runs it, and the keyword matching it does at every word start, once through the syntax's
+// trie and once comparing every keyword in turn, as the lexer did before the trie. A run
+// takes milliseconds per MB, so 1000 / score is the throughput in MB/s.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class LexerBenchmark {
+    private static final String SEPARATORS = " ,.()+-/*=~%<>[];";
+    private static final MethodHandle HIGHLIGHT_LINE;
+    private static final MethodHandle KEYWORD_AT;
+
+    static {
+        try {
+            Class<?> syntax = Class.forName("EditorSyntax");
+            Class<?> matcher = Class.forName("SyntaxMatcher");
+            MethodHandle highlightLine = Editor.MAIN.findStatic(Editor.MAIN.lookupClass(),
+                "highlightLine", MethodType.methodType(boolean.class, syntax, char[].class,
+                    int.class, boolean.class, byte[].class));
+            HIGHLIGHT_LINE = highlightLine.asType(
+                highlightLine.type().changeParameterType(0, Object.class));
+            MethodHandle keywordAt = Editor.MAIN.findVirtual(matcher, "keywordAt",
+                MethodType.methodType(int.class, char[].class, int.class, int.class));
+            KEYWORD_AT = keywordAt.asType(keywordAt.type().changeParameterType(0, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Param({"c", "java"})
+    String syntax;
+
+    private char[][] rows;
+    private byte[] highlight;
+    private Object editorSyntax;
+    private Object matcher;
+    private String[] keywords;
+
+    @Setup(Level.Trial)
+    public void start() throws Throwable {
+        Path file = Corpus.file("1MB", "." + syntax);
+        Editor.start(file);
+        List<String> lines = Files.readAllLines(file);
+        rows = new char[lines.size()][];
+        int longest = 0;
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = lines.get(i).toCharArray();
+            longest = Math.max(longest, rows[i].length);
+        }
+        highlight = new byte[longest];
+        Class<?> syntaxClass = Class.forName("EditorSyntax");
+        editorSyntax = Editor.MAIN.findStaticVarHandle(Editor.MAIN.lookupClass(),
+            "editorSyntax", syntaxClass).get();
+        matcher = Editor.MAIN.findGetter(syntaxClass, "matcher", Class.forName("SyntaxMatcher"))
+            .invoke(editorSyntax);
+        keywords = (String[]) Editor.MAIN.findGetter(syntaxClass, "keywords", String[].class)
+            .invoke(editorSyntax);
+        if (keywordsTrie() != keywordsCompared()) {
+            throw new IllegalStateException("the trie and the comparisons find other keywords");
+        }
+    }
+
+    @Benchmark
+    public boolean highlightLine() throws Throwable {
+        boolean inComment = false;
+        for (char[] row : rows) {
+            inComment = (boolean) HIGHLIGHT_LINE.invokeExact(editorSyntax, row, row.length,
+                inComment, highlight);
+        }
+        return inComment;
+    }
+
+    @Benchmark
+    public int keywordsTrie() throws Throwable {
+        int matched = 0;
+        for (char[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                if (i == 0 || SEPARATORS.indexOf(row[i - 1]) >= 0) {
+                    matched += (int) KEYWORD_AT.invokeExact(matcher, row, row.length, i);
+                }
+            }
+        }
+        return matched;
+    }
+
+    @Benchmark
+    public int keywordsCompared() {
+        int matched = 0;
+        for (char[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                if (i == 0 || SEPARATORS.indexOf(row[i - 1]) >= 0) {
+                    matched += keywordAt(row, i);
+                }
+            }
+        }
+        return matched;
+    }
+
+    // the keyword at i followed by a separator or the end of the row, found as the lexer
+    // found it before SyntaxMatcher: every keyword compared in turn
+    private int keywordAt(char[] row, int i) {
+        for (String keyword : keywords) {
+            int end = i + keyword.length();
+            if (end <= row.length && (end == row.length || SEPARATORS.indexOf(row[end]) >= 0) &&
+                regionMatches(row, i, keyword)) {
+                return keyword.length();
+            }
+        }
+        return 0;
+    }
+
+    private static boolean regionMatches(char[] row, int at, String token) {
+        for (int i = 0; i < token.length(); i++) {
+            if (row[at + i] != token.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
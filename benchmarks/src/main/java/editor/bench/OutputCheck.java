@@ -0,0 +1,82 @@
+package editor.bench;
+
+import java.lang.invoke.MethodHandles;
+
+// Counts the bytes written to the terminal per key on a 24 by 80 screen over a 300-row C file:
+// for a frame that changes nothing, for chars typed at the end of a row and the backspaces
+// taking them back, for an arrow key scrolling by a row, and for page down. The first frame,
+// which draws every row, is printed for comparison. A key only sends what changed on the
+// screen, so the check fails if a frame that changes nothing sends anything, if a typed key
+// sends more than TYPED_LIMIT or if scrolling by a row sends more than a quarter of the first
+// frame.
+//
+//   java -cp benchmarks/target/benchmarks.jar editor.bench.OutputCheck
+public final class OutputCheck {
+    private static final int KEYS = 100;
+    // chars typed, few enough that the row fits on the screen
+    private static final int TYPED = 16;
+    // the char, the changed part of the status bar and a cursor move or two
+    private static final int TYPED_LIMIT = 64;
+
+    private OutputCheck() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        Editor.start(Corpus.copy(Corpus.rows(300, ".c"), ".c"));
+        MethodHandles.Lookup main = Editor.MAIN;
+        int arrowDown = key(main, "ARROW_DOWN");
+        int pageDown = key(main, "PAGE_DOWN");
+        int end = key(main, "END_KEY");
+        int backspace = key(main, "BACKSPACE");
+
+        long firstFrame = frame(-1);
+        long unchanged = frame(-1);
+        Editor.moveTo(5, 0);
+        frame(end);
+        long typed = 0;
+        for (int i = 0; i < TYPED * 2; i++) {
+            typed += frame(i < TYPED ? 'x' : backspace);
+        }
+        Editor.moveTo(22, 0);
+        frame(-1);
+        long scrolled = 0;
+        for (int i = 0; i < KEYS; i++) {
+            scrolled += frame(arrowDown);
+        }
+        Editor.moveTo(0, 0);
+        frame(-1);
+        long paged = 0;
+        for (int i = 0; i < 10; i++) {
+            paged += frame(pageDown);
+        }
+
+        System.out.printf("first frame        %6d B%n", firstFrame);
+        System.out.printf("unchanged frame    %6d B%n", unchanged);
+        System.out.printf("typed key          %6d B%n", typed / TYPED / 2);
+        System.out.printf("scroll by a row    %6d B%n", scrolled / KEYS);
+        System.out.printf("page down          %6d B%n", paged / 10);
+        if (unchanged != 0 || typed / TYPED / 2 > TYPED_LIMIT || scrolled / KEYS > firstFrame / 4) {
+            throw new AssertionError("a key sends more than changed on the screen");
+        }
+        System.out.println("ok");
+    }
+
+    private static int key(MethodHandles.Lookup main, String name) throws Throwable {
+        return (int) main.findStaticGetter(main.lookupClass(), name, int.class).invokeExact();
+    }
+
+    // handles key, if it isn't -1, and returns the bytes of the frames drawn after it: the
+    // first, and the one drawn once the highlighter thread lexed the rows it showed
+    private static long frame(int key) throws Throwable {
+        long before = Editor.written;
+        if (key >= 0) {
+            Editor.HANDLE_KEY.invokeExact(key);
+        }
+        Editor.REFRESH_SCREEN.invokeExact();
+        while ((boolean) Editor.HIGHLIGHT_PENDING.invokeExact()) {
+            Editor.AWAIT_HIGHLIGHT.invoke(1L);
+        }
+        Editor.REFRESH_SCREEN.invokeExact();
+        return Editor.written - before;
+    }
+}
@@ -0,0 +1,23 @@
+package editor.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Runs JMH, writing the results to jmh-result.json unless the arguments choose a result format
+// or file of their own, so runs can be compared for regressions.
+public final class Run {
+    private Run() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        boolean resultOptions = options.stream().anyMatch(option ->
+            option.equals("-rf") || option.equals("-rff") || option.startsWith("-rf=") ||
+            option.startsWith("-rff="));
+        if (!resultOptions) {
+            options.addAll(0, List.of("-rf", "json", "-rff", "jmh-result.json"));
+        }
+        org.openjdk.jmh.Main.main(options.toArray(String[]::new));
+    }
+}
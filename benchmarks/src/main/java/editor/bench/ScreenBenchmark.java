@@ -0,0 +1,92 @@
+package editor.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Frames built by refreshScreen on a 24 by 80 screen, written to a channel that drops them:
+// one moving the cursor only, one scrolling by a row and one showing the next page, which
+// draws every row and waits for their highlights. And bursts of 32 keys typed faster than
+// frames are drawn, run through the editor's loop, which coalesces them into fewer frames: the
+// keys and frames counters give the frames drawn for the keys.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class ScreenBenchmark {
+    private static final int ROWS = 23;
+    // 32 keys, then the 32 backspaces taking them back
+    private static final byte[] KEYS = "x".repeat(32).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BACKSPACES = "\177".repeat(32)
+        .getBytes(StandardCharsets.US_ASCII);
+
+    // keys read and frames drawn by typingBurst
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Frames {
+        public long keys;
+        public long frames;
+    }
+
+    @Param({"1KB", "1MB", "32MB"})
+    String size;
+
+    private int lines;
+    private int frame;
+    private boolean typed;
+
+    @Setup(Level.Trial)
+    public void start() throws Throwable {
+        Editor.start(Corpus.file(size, ".c"));
+        lines = Editor.lineCount();
+    }
+
+    @Setup(Level.Iteration)
+    public void top() throws Throwable {
+        frame = 0;
+        Editor.moveTo(0, 0);
+        Editor.REFRESH_SCREEN.invokeExact();
+    }
+
+    @Benchmark
+    public void cursorMove() throws Throwable {
+        Editor.moveTo(frame++ & 7, 3);
+        Editor.REFRESH_SCREEN.invokeExact();
+    }
+
+    @Benchmark
+    public void scroll() throws Throwable {
+        Editor.moveTo(ROWS + frame++ % (lines - ROWS), 0);
+        Editor.REFRESH_SCREEN.invokeExact();
+    }
+
+    @Benchmark
+    public void pageDown() throws Throwable {
+        Editor.moveTo((int) ((long) ROWS * frame++ % lines), 0);
+        Editor.REFRESH_SCREEN.invokeExact();
+    }
+
+    @Benchmark
+    public void typingBurst(Frames counts) throws Throwable {
+        long keys = (long) Editor.KEYS_READ.get();
+        long frames = (long) Editor.FRAMES_DRAWN.get();
+        Editor.type(typed ? BACKSPACES : KEYS);
+        typed = !typed;
+        counts.keys += (long) Editor.KEYS_READ.get() - keys;
+        counts.frames += (long) Editor.FRAMES_DRAWN.get() - frames;
+    }
+}
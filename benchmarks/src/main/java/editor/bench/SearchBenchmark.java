@@ -0,0 +1,165 @@
+package editor.bench;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Document.find over every row on one thread, on the 1GB file, which is mapped, and a 32MB one,
+// which is loaded: a one-char query, scanned eight bytes at a time, a short and a 16-char query
+// that don't occur, and the word one row in 50 holds. For comparison, the search as it was
+// before Document.find, every row copied out and searched with indexOf, on a 100MB file, as it
+// takes a second per 10MB. And a query narrowed in the find prompt: "xuw" typed, then the "x"
+// of NARROWED, whose matches are checked among the few of "xuw" instead of searched again.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SearchBenchmark {
+    // rare in the corpus: narrowing a common query keeps too many matches and searches again
+    private static final String NARROWED = "xuwx";
+    private static final MethodHandle NEW_PATTERN;
+    private static final MethodHandle FIND;
+    private static final MethodHandle MATCHES;
+    private static final MethodHandle LINE_LENGTH;
+    private static final MethodHandle GET_CHARS;
+
+    static {
+        try {
+            MethodHandles.Lookup main = Editor.MAIN;
+            Class<?> document = Class.forName("Document");
+            Class<?> pattern = Class.forName("SearchPattern");
+            Class<?> consumer = Class.forName("MatchConsumer");
+            NEW_PATTERN = main.findConstructor(pattern,
+                MethodType.methodType(void.class, String.class))
+                .asType(MethodType.methodType(Object.class, String.class));
+            FIND = main.findVirtual(document, "find", MethodType.methodType(void.class, pattern,
+                int.class, int.class, consumer)).asType(MethodType.methodType(void.class,
+                Object.class, Object.class, int.class, int.class, Object.class));
+            // a MatchConsumer counting into an int[], made in the editor's package, where the
+            // interface is visible
+            MethodHandle count = MethodHandles.lookup().findStatic(SearchBenchmark.class, "count",
+                MethodType.methodType(boolean.class, int[].class, int.class, int.class));
+            MethodType accept = MethodType.methodType(boolean.class, int.class, int.class);
+            CallSite site = LambdaMetafactory.metafactory(main, "accept",
+                MethodType.methodType(consumer, int[].class), accept, count, accept);
+            MATCHES = site.getTarget().asType(MethodType.methodType(Object.class, int[].class));
+            LINE_LENGTH = main.findVirtual(document, "lineLength",
+                MethodType.methodType(int.class, int.class))
+                .asType(MethodType.methodType(int.class, Object.class, int.class));
+            GET_CHARS = main.findVirtual(document, "getChars", MethodType.methodType(void.class,
+                int.class, int.class, int.class, char[].class, int.class))
+                .asType(MethodType.methodType(void.class, Object.class, int.class, int.class,
+                    int.class, char[].class, int.class));
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Opened {
+        @Param({"32MB", "1GB"})
+        String size;
+
+        @Param({"Q", "zzzq", "0123456789abcdef", "checksum"})
+        String query;
+
+        Object document;
+        Object pattern;
+        int lines;
+
+        @Setup(Level.Trial)
+        public void start() throws Throwable {
+            Editor.start(Corpus.file(size, ".c"));
+            document = Editor.DOCUMENT.get();
+            pattern = NEW_PATTERN.invokeExact(query);
+            lines = Editor.lineCount();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Copied {
+        @Param({"Q", "checksum"})
+        String copiedQuery;
+
+        Object document;
+        int lines;
+
+        @Setup(Level.Trial)
+        public void start() throws Throwable {
+            Editor.start(Corpus.file("100MB", ".c"));
+            document = Editor.DOCUMENT.get();
+            lines = Editor.lineCount();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Narrowed {
+        @Param({"32MB", "1GB"})
+        String narrowedSize;
+
+        @Setup(Level.Trial)
+        public void start() throws Throwable {
+            Editor.start(Corpus.file(narrowedSize, ".c"));
+        }
+
+        @Setup(Level.Invocation)
+        public void typeAllButLast() throws Throwable {
+            Editor.find(NARROWED.substring(0, NARROWED.length() - 1), false);
+        }
+    }
+
+    public static boolean count(int[] matches, int line, int col) {
+        matches[0]++;
+        return true;
+    }
+
+    @Benchmark
+    public int find(Opened state) throws Throwable {
+        int[] matches = new int[1];
+        FIND.invokeExact(state.document, state.pattern, 0, state.lines,
+            (Object) MATCHES.invokeExact(matches));
+        return matches[0];
+    }
+
+    @Benchmark
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public int rowCopyIndexOf(Copied state) throws Throwable {
+        int matches = 0;
+        char[] row = new char[256];
+        for (int line = 0; line < state.lines; line++) {
+            int length = (int) LINE_LENGTH.invokeExact(state.document, line);
+            if (row.length < length) {
+                row = new char[length * 2];
+            }
+            GET_CHARS.invokeExact(state.document, line, 0, length, row, 0);
+            String text = new String(row, 0, length);
+            for (int at = text.indexOf(state.copiedQuery); at >= 0;
+                at = text.indexOf(state.copiedQuery, at + 1)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public void narrow(Narrowed state) throws Throwable {
+        Editor.narrow(NARROWED);
+    }
+}
@@ -0,0 +1,293 @@
+package editor.bench;
+
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Snapshots of a piece table read by other threads while a writer types at full speed, taking
+// a snapshot after every key as the screen does for the highlighter. Readers read the newest
+// snapshot through writeTo, getChars and charAt, twice, and all the reads must agree: a
+// snapshot never changes under them. Some snapshots are kept, and once the writer stops its
+// keys are replayed onto a plain string, which must match each kept snapshot at its key.
+//
+//   java -cp benchmarks/target/benchmarks.jar editor.bench.SnapshotStress [seconds] [readers]
+public final class SnapshotStress {
+    private static final int ROWS = 2000;
+    private static final int KEEP_INTERVAL = 4096;
+    private static final int INSERT = 0, DELETE = 1;
+
+    private static final MethodHandle LOAD;
+    private static final MethodHandle INSERT_TEXT;
+    private static final MethodHandle DELETE_TEXT;
+    private static final MethodHandle SNAPSHOT;
+    private static final MethodHandle LINE_COUNT;
+    private static final MethodHandle LINE_LENGTH;
+    private static final MethodHandle CHAR_AT;
+    private static final MethodHandle GET_CHARS;
+    private static final MethodHandle WRITE_TO;
+
+    static {
+        try {
+            Class<?> pieceTable = Class.forName("PieceTable");
+            Class<?> document = Class.forName("Document");
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(pieceTable,
+                MethodHandles.lookup());
+            LOAD = lookup.findStatic(pieceTable, "load",
+                MethodType.methodType(pieceTable, Path.class));
+            INSERT_TEXT = virtual(lookup, document, "insert", void.class, int.class, int.class,
+                CharSequence.class);
+            DELETE_TEXT = virtual(lookup, document, "delete", void.class, int.class, int.class,
+                int.class);
+            SNAPSHOT = virtual(lookup, document, "snapshot", document);
+            LINE_COUNT = virtual(lookup, document, "lineCount", int.class);
+            LINE_LENGTH = virtual(lookup, document, "lineLength", int.class, int.class);
+            CHAR_AT = virtual(lookup, document, "charAt", char.class, int.class, int.class);
+            GET_CHARS = virtual(lookup, document, "getChars", void.class, int.class, int.class,
+                int.class, char[].class, int.class);
+            WRITE_TO = virtual(lookup, document, "writeTo", void.class, Writer.class,
+                String.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private SnapshotStress() {
+    }
+
+    // a handle taking the document as an Object, so callers need not see its type
+    private static MethodHandle virtual(MethodHandles.Lookup lookup, Class<?> document,
+        String name, Class<?> returnType, Class<?>... parameters)
+        throws ReflectiveOperationException {
+        MethodHandle handle = lookup.findVirtual(document, name,
+            MethodType.methodType(returnType, parameters));
+        return handle.asType(handle.type().changeParameterType(0, Object.class)
+            .changeReturnType(returnType.isPrimitive() ? returnType : Object.class));
+    }
+
+    // a snapshot kept to be compared with the replayed keys, taken after keys of them
+    private record Kept(Object snapshot, int keys) {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int readerCount = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        StringBuilder initial = new StringBuilder();
+        for (int i = 0; i < ROWS; i++) {
+            initial.append("row ").append(i).append(" of the stress test\n");
+        }
+        Path file = Files.createTempFile("editor-stress", ".txt");
+        Object document;
+        try {
+            Files.writeString(file, initial);
+            document = LOAD.invoke(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        AtomicReference<Object> newest = new AtomicReference<>(SNAPSHOT.invoke(document));
+        AtomicLong reads = new AtomicLong();
+        List<String> failures = new ArrayList<>();
+        Thread[] readers = new Thread[readerCount];
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = Thread.ofPlatform().name("reader " + i).start(() -> {
+                try {
+                    while (System.nanoTime() < end) {
+                        Object snapshot = newest.get();
+                        long written = hashWriteTo(snapshot);
+                        long copied = hashGetChars(snapshot);
+                        long charAt = hashCharAt(snapshot);
+                        if (written != copied || written != charAt ||
+                            written != hashWriteTo(snapshot)) {
+                            synchronized (failures) {
+                                failures.add(String.format("reads of a snapshot differ: %x %x %x",
+                                    written, copied, charAt));
+                            }
+                        }
+                        reads.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(Thread.currentThread().getName() + " threw " + e);
+                    }
+                }
+            });
+        }
+
+        // the writer: keys at a cursor, backspaces, new rows and jumps, as in an editing session
+        int[] keys = new int[1 << 16];
+        int keyCount = 0;
+        List<Kept> kept = new ArrayList<>();
+        Random random = new Random(1);
+        int line = ROWS / 2;
+        int col = 3;
+        while (System.nanoTime() < end) {
+            int choice = random.nextInt(100);
+            if (choice < 70) {
+                boolean newRow = choice < 8;
+                INSERT_TEXT.invokeExact(document, line, col, (CharSequence) (newRow ? "\n" : "x"));
+                keys = log(keys, keyCount++, INSERT, line, col, newRow ? '\n' : 'x');
+                if (newRow) {
+                    line++;
+                    col = 0;
+                } else {
+                    col++;
+                }
+            } else if (choice < 90) {
+                if (col == 0) {
+                    continue;
+                }
+                col--;
+                DELETE_TEXT.invokeExact(document, line, col, 1);
+                keys = log(keys, keyCount++, DELETE, line, col, 1);
+            } else if (choice < 95) {
+                line = random.nextInt((int) LINE_COUNT.invokeExact(document));
+                col = Math.min((int) LINE_LENGTH.invokeExact(document, line), random.nextInt(10));
+                continue;
+            } else {
+                if ((int) LINE_LENGTH.invokeExact(document, line) < col + 3) {
+                    continue;
+                }
+                DELETE_TEXT.invokeExact(document, line, col, 3);
+                keys = log(keys, keyCount++, DELETE, line, col, 3);
+            }
+            Object snapshot = SNAPSHOT.invoke(document);
+            newest.set(snapshot);
+            if (keyCount % KEEP_INTERVAL == 0) {
+                kept.add(new Kept(snapshot, keyCount));
+            }
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        kept.add(new Kept(SNAPSHOT.invoke(document), keyCount));
+
+        // replays the keys onto rows of text, checking the kept snapshots on the way
+        List<StringBuilder> model = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            model.add(new StringBuilder("row " + i + " of the stress test"));
+        }
+        int next = 0;
+        for (Kept snapshot : kept) {
+            for (; next < snapshot.keys(); next++) {
+                replay(model, keys[next * 4], keys[next * 4 + 1], keys[next * 4 + 2],
+                    keys[next * 4 + 3]);
+            }
+            if (hashWriteTo(snapshot.snapshot()) != hash(model)) {
+                failures.add("the snapshot after " + snapshot.keys() + " keys is not the text");
+            }
+        }
+
+        System.out.printf("%d keys and snapshots in %d s, %d reads by %d readers, %d snapshots "
+            + "replayed%n", keyCount, seconds, reads.get(), readerCount, kept.size());
+        if (!failures.isEmpty()) {
+            failures.stream().limit(10).forEach(System.out::println);
+            throw new AssertionError(failures.size() + " failures");
+        }
+        System.out.println("ok");
+    }
+
+    private static int[] log(int[] keys, int key, int kind, int line, int col, int argument) {
+        if ((key + 1) * 4 > keys.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        }
+        keys[key * 4] = kind;
+        keys[key * 4 + 1] = line;
+        keys[key * 4 + 2] = col;
+        keys[key * 4 + 3] = argument;
+        return keys;
+    }
+
+    // a key of the log, deletes join a row with the next when they take its line break
+    private static void replay(List<StringBuilder> rows, int kind, int line, int col,
+        int argument) {
+        StringBuilder row = rows.get(line);
+        if (kind == INSERT && argument == '\n') {
+            rows.add(line + 1, new StringBuilder(row.substring(col)));
+            row.setLength(col);
+        } else if (kind == INSERT) {
+            row.insert(col, (char) argument);
+        } else {
+            for (int i = 0; i < argument; i++) {
+                if (col < row.length()) {
+                    row.deleteCharAt(col);
+                } else {
+                    row.append(rows.remove(line + 1));
+                }
+            }
+        }
+    }
+
+    private static long hash(List<StringBuilder> rows) {
+        long hash = 17;
+        for (StringBuilder row : rows) {
+            for (int i = 0; i < row.length(); i++) {
+                hash = hash * 31 + row.charAt(i);
+            }
+            hash = hash * 31 + '\n';
+        }
+        return hash;
+    }
+
+    private static long hashWriteTo(Object snapshot) throws Throwable {
+        long[] hash = {17};
+        Writer writer = new Writer() {
+            @Override
+            public void write(char[] chars, int offset, int length) {
+                for (int i = offset; i < offset + length; i++) {
+                    hash[0] = hash[0] * 31 + chars[i];
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        WRITE_TO.invokeExact(snapshot, writer, "\n");
+        return hash[0];
+    }
+
+    private static long hashGetChars(Object snapshot) throws Throwable {
+        long hash = 17;
+        char[] row = new char[64];
+        int lines = (int) LINE_COUNT.invokeExact(snapshot);
+        for (int line = 0; line < lines; line++) {
+            int length = (int) LINE_LENGTH.invokeExact(snapshot, line);
+            if (row.length < length) {
+                row = new char[length * 2];
+            }
+            GET_CHARS.invokeExact(snapshot, line, 0, length, row, 0);
+            for (int i = 0; i < length; i++) {
+                hash = hash * 31 + row[i];
+            }
+            hash = hash * 31 + '\n';
+        }
+        return hash;
+    }
+
+    private static long hashCharAt(Object snapshot) throws Throwable {
+        long hash = 17;
+        int lines = (int) LINE_COUNT.invokeExact(snapshot);
+        for (int line = 0; line < lines; line++) {
+            int length = (int) LINE_LENGTH.invokeExact(snapshot, line);
+            for (int col = 0; col < length; col++) {
+                hash = hash * 31 + (char) CHAR_AT.invokeExact(snapshot, line, col);
+            }
+            hash = hash * 31 + '\n';
+        }
+        return hash;
+    }
+}
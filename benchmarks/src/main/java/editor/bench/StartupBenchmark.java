@@ -0,0 +1,117 @@
+package editor.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A cold start: a new JVM running the editor on a 1KB file in a 24 by 80 pseudo terminal,
+// timed from launching it to the end of its first frame, which shows the cursor. The pty comes
+// from script(1), and its start and the stty setting the size are part of the time. Every
+// launch quits with Ctrl-Q outside the time. With classes=appcds the JVM maps the classes of
+// a run from a class data sharing archive, written in setup by one run that quits, as the
+// README shows; this needs the editor's classes in a jar, as in benchmarks.jar.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 15)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+    private static final byte[] SHOW_CURSOR = "\033[?25h".getBytes(StandardCharsets.US_ASCII);
+    private static final int CTRL_Q = 'q' & 0x1f;
+
+    @Param({"default", "appcds"})
+    String classes;
+
+    private Path file;
+    private Path archive;
+    private Process editor;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        file = Corpus.file("1KB", ".c");
+        if (classes.equals("appcds")) {
+            archive = Files.createTempFile("editor-bench", ".jsa");
+            Files.delete(archive);
+            archive.toFile().deleteOnExit();
+            editor = launch("-XX:ArchiveClassesAtExit=" + archive);
+            quit();
+            if (!Files.exists(archive)) {
+                throw new IllegalStateException("no archive written to " + archive);
+            }
+        }
+    }
+
+    @Benchmark
+    public Process firstFrame() throws Exception {
+        editor = launch(archive == null ? null : "-XX:SharedArchiveFile=" + archive);
+        return editor;
+    }
+
+    @TearDown(Level.Invocation)
+    public void quit() throws Exception {
+        editor.getOutputStream().write(CTRL_Q);
+        editor.getOutputStream().flush();
+        if (!editor.waitFor(10, TimeUnit.SECONDS)) {
+            editor.destroyForcibly();
+            throw new IllegalStateException("the editor didn't quit");
+        }
+    }
+
+    // starts the editor with the JVM option, if any, and returns after its first frame
+    private Process launch(String option) throws IOException {
+        List<String> java = new ArrayList<>();
+        java.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (option != null) {
+            java.add(option);
+        }
+        java.addAll(List.of("-cp", classPath(), "Main", file.toString()));
+        StringBuilder command = new StringBuilder("stty rows 24 cols 80 && exec");
+        for (String word : java) {
+            command.append(" '").append(word.replace("'", "'\\''")).append('\'');
+        }
+        // BSD script takes the command after the file, util-linux script as an option
+        List<String> script = System.getProperty("os.name").startsWith("Mac")
+            ? List.of("script", "-q", "/dev/null", "/bin/sh", "-c", command.toString())
+            : List.of("script", "-qfec", command.toString(), "/dev/null");
+        Process process = new ProcessBuilder(script).redirectErrorStream(true).start();
+        InputStream output = process.getInputStream();
+        int matched = 0;
+        while (matched < SHOW_CURSOR.length) {
+            int b = output.read();
+            if (b < 0) {
+                throw new IllegalStateException("the editor exited before drawing a frame");
+            }
+            matched = b == SHOW_CURSOR[matched] ? matched + 1 : b == SHOW_CURSOR[0] ? 1 : 0;
+        }
+        return process;
+    }
+
+    private static String classPath() {
+        try {
+            return Path.of(Class.forName("Main").getProtectionDomain().getCodeSource()
+                .getLocation().toURI()).toString();
+        } catch (ReflectiveOperationException | URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,17 +1,51 @@
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.BiConsumer;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.IntStream;
+import sun.misc.Signal;
 
 class EditorSyntax {
     String fileType;
@@ -21,6 +55,7 @@ class EditorSyntax {
     String multilineCommentEnd;
     String[] keywords;
     int hl_flags;
+    SyntaxMatcher matcher;
 
     public EditorSyntax() {
     }
@@ -36,27 +71,2792 @@ class EditorSyntax {
         this.multilineCommentEnd = multilineCommentEnd;
         this.keywords = keywords.clone();
         this.hl_flags = hl_flags;
+        this.matcher = new SyntaxMatcher(this);
     }
 }
 
-class EditorAction {
-    enum ACTION {
-        INSERT_CHAR,
-        INSERT_ROW,
-        DELETE_CHAR,
-        DELETE_ROW
+// An EditorSyntax compiled once for the lexer. Keywords go into a char trie, so finding the
+// keyword at a position is one walk over its chars instead of a comparison with every keyword,
+// and separators are a lookup table. Nothing allocates while matching.
+class SyntaxMatcher {
+    private static final String SEPARATORS = " ,.()+-/*=~%<>[];";
+    private static final boolean[] SEPARATOR = new boolean[128];
+
+    static {
+        for (int i = 0; i < SEPARATORS.length(); i++) {
+            SEPARATOR[SEPARATORS.charAt(i)] = true;
+        }
+    }
+
+    private final char[] singleLineCommentStart;
+    private final char[] multilineCommentStart;
+    private final char[] multilineCommentEnd;
+
+    // Trie node 0 is the root. Keyword chars are numbered 1..alphabet by charIndex, the child of
+    // node n for char number c is children[n * alphabet + c - 1], 0 if there is none.
+    private final byte[] charIndex = new byte[128];
+    private final int alphabet;
+    private final int[] children;
+    private final boolean[] keywordEnd;
+
+    SyntaxMatcher(EditorSyntax syntax) {
+        singleLineCommentStart = syntax.singleLineCommentStart.toCharArray();
+        multilineCommentStart = syntax.multilineCommentStart.toCharArray();
+        multilineCommentEnd = syntax.multilineCommentEnd.toCharArray();
+
+        int chars = 0;
+        int nodes = 1;
+        for (String keyword : syntax.keywords) {
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = keyword.charAt(i);
+                if (c >= 128 || SEPARATOR[c]) {
+                    throw new IllegalArgumentException("unsupported keyword: " + keyword);
+                }
+                if (charIndex[c] == 0) {
+                    charIndex[c] = (byte) ++chars;
+                }
+            }
+            nodes += keyword.length();
+        }
+        alphabet = Math.max(chars, 1);
+        children = new int[nodes * alphabet];
+        keywordEnd = new boolean[nodes];
+
+        int used = 1;
+        for (String keyword : syntax.keywords) {
+            int node = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                int child = node * alphabet + charIndex[keyword.charAt(i)] - 1;
+                if (children[child] == 0) {
+                    children[child] = used++;
+                }
+                node = children[child];
+            }
+            keywordEnd[node] = true;
+        }
+    }
+
+    static boolean isSeparator(char c) {
+        return c < 128 && SEPARATOR[c];
+    }
+
+    boolean hasSingleLineComments() {
+        return singleLineCommentStart.length > 0;
+    }
+
+    boolean hasMultilineComments() {
+        return multilineCommentStart.length > 0 && multilineCommentEnd.length > 0;
+    }
+
+    boolean singleLineCommentAt(char[] line, int length, int at) {
+        return startsWith(line, length, at, singleLineCommentStart);
+    }
+
+    // returns the length of the multiline comment start at this position, 0 if there is none
+    int multilineCommentStartAt(char[] line, int length, int at) {
+        return startsWith(line, length, at, multilineCommentStart) ?
+            multilineCommentStart.length : 0;
+    }
+
+    int multilineCommentEndAt(char[] line, int length, int at) {
+        return startsWith(line, length, at, multilineCommentEnd) ? multilineCommentEnd.length : 0;
+    }
+
+    // Returns the length of the keyword at this position that is followed by a separator or the
+    // end of the line, 0 if there is none. Keywords hold no separators, so at most one matches.
+    int keywordAt(char[] line, int length, int at) {
+        int node = 0;
+        for (int i = at; i < length; i++) {
+            char c = line[i];
+            int index = c < 128 ? charIndex[c] : 0;
+            if (index == 0) {
+                return 0;
+            }
+            node = children[node * alphabet + index - 1];
+            if (node == 0) {
+                return 0;
+            }
+            if (keywordEnd[node] && (i + 1 == length || isSeparator(line[i + 1]))) {
+                return i + 1 - at;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean startsWith(char[] line, int length, int at, char[] token) {
+        if (at + token.length > length) {
+            return false;
+        }
+        for (int i = 0; i < token.length; i++) {
+            if (line[at + i] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// Undo history of the edits, each a span of text inserted or deleted at a position. A key that
+// continues the newest edit, typing on after it or deleting next to it, is merged into it, so
+// a run of keys is undone at once. Edits are kept as ints in a ring and their text in a ring
+// of chars, the oldest are dropped when either is full. Edits up to current can be undone, the
+// ones after it redone until a new edit is recorded.
+class UndoHistory {
+    static final int INSERT = 0;
+    // deleted with backspace, the chars are kept from the last one back
+    static final int DELETE_BACKWARD = 1;
+    static final int DELETE_FORWARD = 2;
+
+    // kind, position of the text, position after it, the cursor before and after the edit,
+    // text length
+    private static final int FIELDS = 10;
+    private static final int KIND = 0, LINE = 1, COL = 2, END_LINE = 3, END_COL = 4,
+        BEFORE_LINE = 5, BEFORE_COL = 6, AFTER_LINE = 7, AFTER_COL = 8, LENGTH = 9;
+
+    private final int[] edits;
+    private final long[] textStarts;
+    private final char[] text;
+    // text of the edits longer than the whole ring, which take no room in it, null for the rest
+    private final String[] large;
+    // offsets of the edits in the undo file, -1 for the ones not written to it
+    private final long[] offsets;
+    // where edits dropped from the history go, null if they are lost
+    private UndoFile file;
+    // numbers of the oldest edit kept, the next to redo and the next to record
+    private long oldest;
+    private long current;
+    private long newest;
+    private long textEnd;
+    // whether the newest edit takes no more keys
+    private boolean sealed = true;
+
+    UndoHistory(int maxEdits, int maxChars) {
+        edits = new int[maxEdits * FIELDS];
+        textStarts = new long[maxEdits];
+        text = new char[maxChars];
+        large = new String[maxEdits];
+        offsets = new long[maxEdits];
+    }
+
+    // edits dropped from now on are written to file, and undone from it
+    void keep(UndoFile file) {
+        this.file = file;
+        Arrays.fill(offsets, -1);
+    }
+
+    // Appends the edits up to the next to redo that the undo file doesn't have yet, and takes
+    // them for the saver thread to write, null if the file can't be written.
+    UndoFile.Batch persist() {
+        sealed = true;
+        if (file.startOver()) {
+            Arrays.fill(offsets, -1);
+        }
+        file.beginSave();
+        for (long edit = oldest; edit < current; edit++) {
+            write(edit);
+        }
+        return file.take(current > oldest ? offsets[index(current - 1)] : file.head());
+    }
+
+    // Records chars inserted or deleted at (line, col) that moved the cursor from before to
+    // after. An edit longer than the ring is kept on its own, after dropping all older ones.
+    void record(int kind, int line, int col, CharSequence chars, int beforeLine,
+        int beforeCol, int afterLine, int afterCol) {
+        int length = chars.length();
+        int breaks = 0;
+        int lastBreak = -1;
+        for (int i = 0; i < length; i++) {
+            if (chars.charAt(i) == '\n') {
+                breaks++;
+                lastBreak = i;
+            }
+        }
+        int endLine = line + breaks;
+        int endCol = breaks == 0 ? col + length : length - lastBreak - 1;
+
+        if (continuesNewest(kind, line, col, endLine, endCol, beforeLine, beforeCol) &&
+            makeRoom(length) && newest > oldest) {
+            int at = slot(newest - 1);
+            appendText(chars, kind == DELETE_BACKWARD);
+            edits[at + LENGTH] += length;
+            edits[at + AFTER_LINE] = afterLine;
+            edits[at + AFTER_COL] = afterCol;
+            if (kind == INSERT) {
+                edits[at + END_LINE] = endLine;
+                edits[at + END_COL] = endCol;
+            } else if (kind == DELETE_BACKWARD) {
+                edits[at + LINE] = line;
+                edits[at + COL] = col;
+            }
+            return;
+        }
+
+        // a new edit drops the ones that could be redone
+        for (long edit = current; edit < newest; edit++) {
+            large[index(edit)] = null;
+        }
+        newest = current;
+        if (newest > oldest) {
+            textEnd = textStarts[index(newest - 1)] + (large[index(newest - 1)] != null ? 0 :
+                edits[slot(newest - 1) + LENGTH]);
+        }
+        if (newest - oldest == textStarts.length) {
+            dropOldest();
+        }
+        if (file != null) {
+            file.dropRedo();
+        }
+        boolean fits = makeRoom(length);
+        if (!fits) {
+            // the older edits go to the undo file, if there is one
+            while (oldest < newest) {
+                dropOldest();
+            }
+            current = oldest;
+        }
+        int at = slot(newest);
+        edits[at + KIND] = kind;
+        edits[at + LINE] = line;
+        edits[at + COL] = col;
+        edits[at + END_LINE] = endLine;
+        edits[at + END_COL] = endCol;
+        edits[at + BEFORE_LINE] = beforeLine;
+        edits[at + BEFORE_COL] = beforeCol;
+        edits[at + AFTER_LINE] = afterLine;
+        edits[at + AFTER_COL] = afterCol;
+        edits[at + LENGTH] = length;
+        textStarts[index(newest)] = textEnd;
+        offsets[index(newest)] = -1;
+        if (fits) {
+            large[index(newest)] = null;
+            appendText(chars, kind == DELETE_BACKWARD);
+        } else {
+            large[index(newest)] = chars.toString();
+        }
+        newest++;
+        current = newest;
+        // keys after a large edit are not merged into it
+        sealed = !fits;
+    }
+
+    // the next key starts an edit of its own
+    void seal() {
+        sealed = true;
+    }
+
+    void clear() {
+        Arrays.fill(large, null);
+        oldest = current = newest = 0;
+        textEnd = 0;
+        sealed = true;
+        if (file != null) {
+            file.forget();
+        }
+    }
+
+    // number of the edit to undo, -1 if there is none
+    long undo() {
+        sealed = true;
+        return current > oldest ? --current : -1;
+    }
+
+    // number of the edit to redo, -1 if there is none
+    long redo() {
+        sealed = true;
+        return current < newest ? current++ : -1;
+    }
+
+    int kind(long edit) {
+        return edits[slot(edit) + KIND];
+    }
+
+    int line(long edit) {
+        return edits[slot(edit) + LINE];
+    }
+
+    int col(long edit) {
+        return edits[slot(edit) + COL];
+    }
+
+    int cursorLine(long edit, boolean before) {
+        return edits[slot(edit) + (before ? BEFORE_LINE : AFTER_LINE)];
+    }
+
+    int cursorCol(long edit, boolean before) {
+        return edits[slot(edit) + (before ? BEFORE_COL : AFTER_COL)];
+    }
+
+    // the text of an edit as it is in the document
+    String text(long edit) {
+        String kept = large[index(edit)];
+        if (kept != null) {
+            return kept;
+        }
+        int length = edits[slot(edit) + LENGTH];
+        long start = textStarts[index(edit)];
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = text[(int) ((start + i) % text.length)];
+        }
+        kept = new String(chars);
+        return kind(edit) == DELETE_BACKWARD ? new StringBuilder(kept).reverse().toString() : kept;
+    }
+
+    private boolean continuesNewest(int kind, int line, int col, int endLine, int endCol,
+        int beforeLine, int beforeCol) {
+        if (sealed || current != newest || newest == oldest) {
+            return false;
+        }
+        int at = slot(newest - 1);
+        if (edits[at + KIND] != kind || edits[at + AFTER_LINE] != beforeLine ||
+            edits[at + AFTER_COL] != beforeCol) {
+            return false;
+        }
+        return switch (kind) {
+            case INSERT -> edits[at + END_LINE] == line && edits[at + END_COL] == col;
+            case DELETE_BACKWARD -> edits[at + LINE] == endLine && edits[at + COL] == endCol;
+            default -> edits[at + LINE] == line && edits[at + COL] == col;
+        };
+    }
+
+    // drops the oldest edits until length more chars fit, false if they never do
+    private boolean makeRoom(int length) {
+        if (length > text.length) {
+            return false;
+        }
+        while (oldest < newest && textEnd + length - textStarts[index(oldest)] > text.length) {
+            dropOldest();
+        }
+        if (current < oldest) {
+            current = oldest;
+        }
+        return true;
+    }
+
+    // the oldest edit goes to the undo file, unless it was undone
+    private void dropOldest() {
+        if (file != null && oldest < current) {
+            write(oldest);
+            file.setHead(offsets[index(oldest)]);
+        }
+        large[index(oldest)] = null;
+        oldest++;
+    }
+
+    private void write(long edit) {
+        int i = index(edit);
+        if (offsets[i] >= 0) {
+            return;
+        }
+        long previous = edit > oldest ? offsets[index(edit - 1)] : file.head();
+        int at = slot(edit);
+        offsets[i] = file.append(previous, edits[at + KIND], edits[at + LINE], edits[at + COL],
+            edits[at + BEFORE_LINE], edits[at + BEFORE_COL], edits[at + AFTER_LINE],
+            edits[at + AFTER_COL], text(edit));
+    }
+
+    private void appendText(CharSequence chars, boolean reversed) {
+        int length = chars.length();
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(reversed ? length - 1 - i : i);
+            text[(int) (textEnd++ % text.length)] = c;
+        }
+    }
+
+    private int index(long edit) {
+        return (int) (edit % textStarts.length);
+    }
+
+    private int slot(long edit) {
+        return index(edit) * FIELDS;
+    }
+}
+
+// Text of the file being edited, addressed by row and column. Every row ends with an implicit
+// line break, so an empty document has no rows and (lineCount(), 0) is the end of the text.
+interface Document {
+    int lineCount();
+
+    int lineLength(int line);
+
+    char charAt(int line, int col);
+
+    // copies the chars [srcBegin, srcEnd) of a row into dst
+    void getChars(int line, int srcBegin, int srcEnd, char[] dst, int dstBegin);
+
+    // inserts text at (line, col), '\n' in text starts a new row
+    void insert(int line, int col, CharSequence text);
+
+    // deletes length chars starting at (line, col), a row's line break counts as one char
+    void delete(int line, int col, int length);
+
+    void writeTo(Writer writer, String lineSeparator) throws IOException;
+
+    // read-only copy of the current text, which other threads can read while this document
+    // keeps being edited
+    Document snapshot();
+
+    // called on a snapshot once it is read no more, the document it was taken from may then
+    // reuse what only the snapshot kept
+    void release();
+
+    // whether insert and delete throw UnsupportedOperationException
+    boolean isReadOnly();
+
+    // Calls matches with every match of pattern in rows [fromLine, toLine), in document order,
+    // until it returns false. Matches may overlap, they never span rows. Several threads may
+    // search a snapshot at once.
+    void find(SearchPattern pattern, int fromLine, int toLine, MatchConsumer matches);
+
+    // Calls lines with the chars of every row in [fromLine, toLine), in order, until it returns
+    // false. Reading rows one after the other this way is quicker than getChars, which finds
+    // each row on its own, and caches nothing, so several threads may read a snapshot at once.
+    void readLines(int fromLine, int toLine, LineConsumer lines);
+}
+
+// receives the matches of a search, returns false to stop it
+interface MatchConsumer {
+    boolean accept(int line, int col);
+}
+
+// receives rows read in order, the chars [0, length) of a row are only valid during the call,
+// returns false to stop reading
+interface LineConsumer {
+    boolean accept(int line, char[] chars, int length);
+}
+
+// A row as a CharSequence, so a regex Matcher reads it where it is instead of from a String.
+// Matching a regex can take exponential time on a short row, so every CHECK_INTERVAL chars
+// read it asks whether to go on, and throws CancellationException otherwise.
+class RowSequence implements CharSequence {
+    private static final int CHECK_INTERVAL = 4096;
+
+    private final BooleanSupplier goOn;
+    private char[] chars = new char[0];
+    private int length;
+    private int untilCheck = CHECK_INTERVAL;
+
+    RowSequence(BooleanSupplier goOn) {
+        this.goOn = goOn;
+    }
+
+    // views the chars [0, length), which must not change while they are matched
+    RowSequence set(char[] chars, int length) {
+        this.chars = chars;
+        this.length = length;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (--untilCheck == 0) {
+            untilCheck = CHECK_INTERVAL;
+            if (!goOn.getAsBoolean()) {
+                throw new CancellationException();
+            }
+        }
+        if (index >= length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return chars[index];
+    }
+
+    // only called for groups and replacements, which copy the chars anyway
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(chars, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+}
+
+// A search query compiled for Boyer-Moore-Horspool: the text is compared from the last char of
+// the query, and a mismatch shifts the query by how far that text char is from its end, so
+// longer queries skip more text. The shifts are kept for chars, by their low byte, and for the
+// UTF-8 bytes of the query, which documents stored as UTF-8 are searched for. Queries hold no
+// line breaks.
+class SearchPattern {
+    private static final VarHandle LONGS =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    final char[] chars;
+    final byte[] bytes;
+    private final int[] charShift = new int[256];
+    private final int[] byteShift = new int[256];
+
+    SearchPattern(String query) {
+        chars = query.toCharArray();
+        bytes = query.getBytes(StandardCharsets.UTF_8);
+        Arrays.fill(charShift, chars.length);
+        for (int i = 0; i < chars.length - 1; i++) {
+            charShift[chars[i] & 0xff] = chars.length - 1 - i;
+        }
+        Arrays.fill(byteShift, bytes.length);
+        for (int i = 0; i < bytes.length - 1; i++) {
+            byteShift[bytes[i] & 0xff] = bytes.length - 1 - i;
+        }
+    }
+
+    int length() {
+        return chars.length;
+    }
+
+    // index of the first match starting in text[from, to - length()], -1 if there is none
+    int indexOf(char[] text, int from, int to) {
+        int last = chars.length - 1;
+        for (int i = from; i + last < to; i += charShift[text[i + last] & 0xff]) {
+            if (text[i + last] == chars[last] && matchesAt(text, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int indexOf(byte[] text, int from, int to) {
+        int last = bytes.length - 1;
+        if (last == 0) {
+            // nothing to skip, the bytes are compared 8 at a time instead
+            long repeated = (bytes[0] & 0xffL) * 0x0101010101010101L;
+            int i = from;
+            while (i + 8 <= to) {
+                long x = (long) LONGS.get(text, i) ^ repeated;
+                if (((x - 0x0101010101010101L) & ~x & 0x8080808080808080L) != 0) {
+                    break;
+                }
+                i += 8;
+            }
+            for (; i < to; i++) {
+                if (text[i] == bytes[0]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        for (int i = from; i + last < to; i += byteShift[text[i + last] & 0xff]) {
+            if (text[i + last] == bytes[last] && Arrays.equals(text, i, i + last, bytes, 0, last)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    boolean matchesAt(char[] text, int at) {
+        return Arrays.equals(text, at, at + chars.length, chars, 0, chars.length);
+    }
+}
+
+// Finds the matches of a query in a snapshot on the common fork/join pool. Rows are halved
+// until a task has at most LEAF_SIZE left, the halves are searched in parallel and the matches
+// of the first half come first. Narrowing down the matches of a shorter query, its matches are
+// halved instead and each is checked against its row. A regex is matched row by row, through a
+// RowSequence that gives up once the search is cancelled, and its empty matches are left out
+// as they cover no char. Every match is counted, but only limit of them are kept in total:
+// tasks keep what they find while the budget lasts, and the matches kept end at the first task
+// that could not keep all of its own, so they are the first ones of the document whichever
+// tasks ran first.
+@SuppressWarnings("serial")
+class SearchTask extends RecursiveTask<SearchTask.Found> {
+    // rows, or matches of a shorter query, checked by one task
+    private static final int LEAF_SIZE = 1 << 16;
+
+    // count matches found, the first kept of them in parts, as row << 32 | col
+    record Found(List<long[]> parts, int kept, long count) {
+        long[] matches() {
+            long[] matches = new long[kept];
+            int at = 0;
+            for (long[] part : parts) {
+                System.arraycopy(part, 0, matches, at, part.length);
+                at += part.length;
+            }
+            return matches;
+        }
+    }
+
+    private final Document text;
+    // the query, either a literal or a regex
+    private final SearchPattern pattern;
+    private final Pattern regex;
+    // matches of a shorter query, null when rows are searched
+    private final long[] candidates;
+    // rows, or indices of candidates, of this task
+    private final int from;
+    private final int to;
+    private final AtomicInteger budget;
+    // the task the search started with, the others stop once it is cancelled
+    private final SearchTask root;
+
+    private long[] kept = new long[16];
+    private int keptCount;
+    private long count;
+
+    private SearchTask(Document text, SearchPattern pattern, Pattern regex, long[] candidates,
+                       int to, int limit) {
+        this.text = text;
+        this.pattern = pattern;
+        this.regex = regex;
+        this.candidates = candidates;
+        this.from = 0;
+        this.to = to;
+        this.budget = new AtomicInteger(limit);
+        this.root = this;
+    }
+
+    private SearchTask(SearchTask parent, int from, int to) {
+        this.text = parent.text;
+        this.pattern = parent.pattern;
+        this.regex = parent.regex;
+        this.candidates = parent.candidates;
+        this.from = from;
+        this.to = to;
+        this.budget = parent.budget;
+        this.root = parent.root;
+    }
+
+    // searches every row of a snapshot
+    static SearchTask find(Document text, SearchPattern pattern, int limit) {
+        return new SearchTask(text, pattern, null, null, text.lineCount(), limit);
+    }
+
+    static SearchTask find(Document text, Pattern regex, int limit) {
+        return new SearchTask(text, null, regex, null, text.lineCount(), limit);
+    }
+
+    // checks which matches of a shorter query, the start of pattern, are matches of pattern
+    static SearchTask narrow(Document text, SearchPattern pattern, long[] candidates, int limit) {
+        return new SearchTask(text, pattern, null, candidates, candidates.length, limit);
+    }
+
+    @Override
+    protected Found compute() {
+        if (to - from > LEAF_SIZE) {
+            int middle = (from + to) >>> 1;
+            SearchTask second = new SearchTask(this, middle, to);
+            second.fork();
+            Found first = new SearchTask(this, from, middle).compute();
+            Found rest = second.join();
+            long total = first.count() + rest.count();
+            if (first.kept() < first.count()) {
+                return new Found(first.parts(), first.kept(), total);
+            }
+            List<long[]> parts = new ArrayList<>(first.parts());
+            parts.addAll(rest.parts());
+            return new Found(parts, first.kept() + rest.kept(), total);
+        }
+
+        if (root.isCancelled()) {
+            return new Found(List.of(), 0, 0);
+        }
+        if (regex != null) {
+            matchRows();
+        } else if (candidates == null) {
+            text.find(pattern, from, to, this::collect);
+        } else {
+            checkCandidates();
+        }
+        return new Found(keptCount == 0 ? List.of() : List.of(Arrays.copyOf(kept, keptCount)),
+            keptCount, count);
+    }
+
+    private void matchRows() {
+        RowSequence row = new RowSequence(() -> !root.isCancelled());
+        Matcher matcher = regex.matcher(row);
+        try {
+            text.readLines(from, to, (line, chars, length) -> {
+                matcher.reset(row.set(chars, length));
+                while (matcher.find()) {
+                    if (matcher.end() > matcher.start() && !collect(line, matcher.start())) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        } catch (CancellationException e) {
+            // given up in the middle of a row, nobody waits for the result
+        }
+    }
+
+    private void checkCandidates() {
+        // documents cache the rows read, each task reads them through a snapshot of its own
+        Document rows = text.snapshot();
+        char[] line = new char[256];
+        int row = -1;
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            int matchRow = (int) (candidates[i] >>> 32);
+            int col = (int) candidates[i];
+            if (matchRow != row) {
+                row = matchRow;
+                length = rows.lineLength(row);
+                if (line.length < length) {
+                    line = new char[Math.max(length, line.length * 2)];
+                }
+                rows.getChars(row, 0, length, line, 0);
+            }
+            if (col + pattern.length() <= length && pattern.matchesAt(line, col) &&
+                !collect(row, col)) {
+                return;
+            }
+        }
+    }
+
+    // keeps matches while all the ones before were kept and the budget lasts
+    private boolean collect(int line, int col) {
+        if (keptCount == count && budget.getAndDecrement() > 0) {
+            if (keptCount == kept.length) {
+                kept = Arrays.copyOf(kept, keptCount * 2);
+            }
+            kept[keptCount++] = (long) line << 32 | col;
+        }
+        count++;
+        return !root.isCancelled();
+    }
+}
+
+// Piece table: the loaded file and an append-only buffer of inserted text are never modified,
+// the document is the sequence of pieces pointing into them. Line breaks of both buffers are
+// indexed once, so finding a row only walks the pieces, never the text. The pieces are kept in
+// a persistent balanced tree, whose nodes hold the length and line breaks of their subtree and
+// are never changed once made: an edit copies the path to the pieces it touches, so a snapshot
+// shares the tree as it is and takes no time to make.
+class PieceTable implements Document {
+    // A piece of the text, and the node of the tree holding it. Heights of the two subtrees
+    // differ by at most two.
+    private static final class Piece {
+        final boolean added;
+        final int start;
+        final int length;
+        final int lineBreaks;
+        final Piece left;
+        final Piece right;
+        final int height;
+        // chars and line breaks of the subtree
+        final int totalLength;
+        final int totalBreaks;
+
+        Piece(boolean added, int start, int length, int lineBreaks, Piece left, Piece right) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+            this.lineBreaks = lineBreaks;
+            this.left = left;
+            this.right = right;
+            height = Math.max(height(left), height(right)) + 1;
+            totalLength = totalLength(left) + length + totalLength(right);
+            totalBreaks = totalBreaks(left) + lineBreaks + totalBreaks(right);
+        }
+    }
+
+    // Walks the pieces in order from the one holding an offset. The stack holds the nodes
+    // whose piece and right subtree are still ahead.
+    private static final class PieceCursor {
+        private final Piece[] stack;
+        private int depth;
+        // the current piece, null past the end, its offset in the text and the line breaks
+        // before it
+        Piece piece;
+        int offset;
+        int breaks;
+
+        PieceCursor(Piece root, int target) {
+            stack = new Piece[height(root)];
+            Piece node = root;
+            while (node != null) {
+                int leftLength = totalLength(node.left);
+                if (target < leftLength) {
+                    stack[depth++] = node;
+                    node = node.left;
+                } else if (target < leftLength + node.length) {
+                    piece = node;
+                    offset += leftLength;
+                    breaks += totalBreaks(node.left);
+                    return;
+                } else {
+                    target -= leftLength + node.length;
+                    offset += leftLength + node.length;
+                    breaks += totalBreaks(node.left) + node.lineBreaks;
+                    node = node.right;
+                }
+            }
+        }
+
+        void next() {
+            offset += piece.length;
+            breaks += piece.lineBreaks;
+            Piece node = piece.right;
+            if (node == null) {
+                piece = depth > 0 ? stack[--depth] : null;
+                return;
+            }
+            while (node.left != null) {
+                stack[depth++] = node;
+                node = node.left;
+            }
+            piece = node;
+        }
+    }
+
+    private final char[] original;
+    private final int[] originalBreaks;
+
+    private char[] added = new char[1024];
+    private int addedLength;
+    private int[] addedBreaks = new int[64];
+    private int addedBreakCount;
+
+    private Piece root;
+    private int length;
+    private int lineCount;
+    private final boolean readOnly;
+
+    // Typing: the offset after the piece the last insert went into, its length and where it
+    // ends in the add buffer. An insert there grows the piece, a delete ending there shrinks
+    // it, without splitting the tree. editLength is 0 if there is no such piece.
+    private int editEnd;
+    private int editLength;
+    private int editBufferEnd;
+    // the start of the row edited last, -1 if not known
+    private int cachedLine = -1;
+    private int cachedLineStart;
+    // the part of the add buffer snapshots older than the newest may point into
+    private int sharedLength;
+    // the newest snapshot, whose part is only kept until it is released
+    private PieceTable newestSnapshot;
+    private volatile boolean released;
+
+    PieceTable() {
+        this(new char[0], 0);
+    }
+
+    // text must end with '\n' unless it is empty
+    private PieceTable(char[] text, int textLength) {
+        original = text;
+        int breakCount = 0;
+        for (int i = 0; i < textLength; i++) {
+            if (text[i] == '\n') {
+                breakCount++;
+            }
+        }
+        originalBreaks = new int[breakCount];
+        for (int i = 0, b = 0; i < textLength; i++) {
+            if (text[i] == '\n') {
+                originalBreaks[b++] = i;
+            }
+        }
+        if (textLength > 0) {
+            root = new Piece(false, 0, textLength, breakCount, null, null);
+        }
+        length = textLength;
+        lineCount = breakCount;
+        readOnly = false;
+    }
+
+    // Shares both buffers and the tree with source. The add buffer is only appended to, or
+    // taken back, past the part the tree points into, and the tree is never changed.
+    private PieceTable(PieceTable source) {
+        original = source.original;
+        originalBreaks = source.originalBreaks;
+        added = source.added;
+        addedLength = source.addedLength;
+        addedBreaks = source.addedBreaks;
+        addedBreakCount = source.addedBreakCount;
+        root = source.root;
+        length = source.length;
+        lineCount = source.lineCount;
+        readOnly = true;
+    }
+
+    static PieceTable load(Path path) throws IOException {
+        String text = Files.readString(path);
+        // "\r\n" and "\r" become '\n', and the last row gets its line break
+        char[] chars = new char[text.length() + 1];
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\r') {
+                c = '\n';
+                if (i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+            }
+            chars[n++] = c;
+        }
+        if (n > 0 && chars[n - 1] != '\n') {
+            chars[n++] = '\n';
+        }
+        return new PieceTable(chars, n);
+    }
+
+    @Override
+    public int lineCount() {
+        return lineCount;
+    }
+
+    @Override
+    public int lineLength(int line) {
+        return lineStart(line + 1) - lineStart(line) - 1;
+    }
+
+    @Override
+    public char charAt(int line, int col) {
+        int offset = lineStart(line) + col;
+        Piece node = root;
+        while (node != null) {
+            int leftLength = totalLength(node.left);
+            if (offset < leftLength) {
+                node = node.left;
+            } else if (offset < leftLength + node.length) {
+                return buffer(node)[node.start + offset - leftLength];
+            } else {
+                offset -= leftLength + node.length;
+                node = node.right;
+            }
+        }
+        throw new IndexOutOfBoundsException("line " + line + ", col " + col);
+    }
+
+    @Override
+    public void getChars(int line, int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        copyText(lineStart(line) + srcBegin, srcEnd - srcBegin, dst, dstBegin);
+    }
+
+    // Matches inside a piece are searched for in its buffer, those running into the next pieces
+    // in a copy of the text around the end of the piece.
+    @Override
+    public void find(SearchPattern pattern, int fromLine, int toLine, MatchConsumer matches) {
+        int from = lineStart(fromLine);
+        int to = lineStart(toLine);
+        int length = pattern.length();
+        char[] window = new char[2 * length];
+        PieceCursor pieces = new PieceCursor(root, from);
+        // row at the start of the piece, and where it starts
+        int line = pieces.breaks;
+        int lineOffset = lineStart(line);
+        for (; pieces.piece != null && pieces.offset < to; pieces.next()) {
+            Piece piece = pieces.piece;
+            int pieceOffset = pieces.offset;
+            char[] buffer = buffer(piece);
+            int end = Math.min(to, pieceOffset + piece.length);
+            int limit = piece.start + end - pieceOffset;
+            int at = piece.start + Math.max(from, pieceOffset) - pieceOffset;
+            while ((at = pattern.indexOf(buffer, at, limit)) >= 0) {
+                if (!report(piece, pieceOffset, at, line, lineOffset, matches)) {
+                    return;
+                }
+                at++;
+            }
+            if (end < to && length > 1) {
+                int windowStart = Math.max(Math.max(from, pieceOffset), end - length + 1);
+                int windowLength = Math.min(to, end + length - 1) - windowStart;
+                copyText(windowStart, windowLength, window, 0);
+                at = 0;
+                while ((at = pattern.indexOf(window, at, windowLength)) >= 0 &&
+                    windowStart + at < end) {
+                    int position = piece.start + windowStart + at - pieceOffset;
+                    if (!report(piece, pieceOffset, position, line, lineOffset, matches)) {
+                        return;
+                    }
+                    at++;
+                }
+            }
+            if (piece.lineBreaks > 0) {
+                int lastBreak = (piece.added ? addedBreaks : originalBreaks)[
+                    lowerBound(piece.added, piece.start + piece.length) - 1];
+                line += piece.lineBreaks;
+                lineOffset = pieceOffset + lastBreak - piece.start + 1;
+            }
+        }
+    }
+
+    // rows are gathered from the pieces they are made of into one buffer
+    @Override
+    public void readLines(int fromLine, int toLine, LineConsumer lines) {
+        int from = lineStart(fromLine);
+        int to = lineStart(toLine);
+        char[] chars = new char[256];
+        int length = 0;
+        int line = fromLine;
+        for (PieceCursor pieces = new PieceCursor(root, from);
+             pieces.piece != null && pieces.offset < to; pieces.next()) {
+            Piece piece = pieces.piece;
+            int pieceOffset = pieces.offset;
+            char[] buffer = buffer(piece);
+            int at = piece.start + Math.max(from, pieceOffset) - pieceOffset;
+            int end = piece.start + Math.min(to, pieceOffset + piece.length) - pieceOffset;
+            while (at < end) {
+                int lineEnd = at;
+                while (lineEnd < end && buffer[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                if (chars.length < length + lineEnd - at) {
+                    chars = Arrays.copyOf(chars, Math.max(length + lineEnd - at,
+                        chars.length * 2));
+                }
+                System.arraycopy(buffer, at, chars, length, lineEnd - at);
+                length += lineEnd - at;
+                if (lineEnd < end) {
+                    if (!lines.accept(line++, chars, length)) {
+                        return;
+                    }
+                    length = 0;
+                }
+                at = lineEnd + 1;
+            }
+        }
+    }
+
+    // reports the match at buffer position of a piece, whose text starts in row line
+    private boolean report(Piece piece, int pieceOffset, int position, int line, int lineOffset,
+                           MatchConsumer matches) {
+        int breaks = countBreaks(piece.added, piece.start, position);
+        if (breaks > 0) {
+            int lastBreak = (piece.added ? addedBreaks : originalBreaks)[
+                lowerBound(piece.added, position) - 1];
+            line += breaks;
+            lineOffset = pieceOffset + lastBreak - piece.start + 1;
+        }
+        return matches.accept(line, pieceOffset + position - piece.start - lineOffset);
+    }
+
+    // copies count chars of the text from offset on into dst
+    private void copyText(int offset, int count, char[] dst, int dstBegin) {
+        copyText(root, offset, count, dst, dstBegin);
+    }
+
+    private void copyText(Piece node, int offset, int count, char[] dst, int dstBegin) {
+        while (node != null && count > 0) {
+            int leftLength = totalLength(node.left);
+            if (offset < leftLength) {
+                int copied = Math.min(count, leftLength - offset);
+                copyText(node.left, offset, copied, dst, dstBegin);
+                offset += copied;
+                dstBegin += copied;
+                count -= copied;
+            }
+            offset -= leftLength;
+            if (count > 0 && offset < node.length) {
+                int copied = Math.min(count, node.length - offset);
+                System.arraycopy(buffer(node), node.start + offset, dst, dstBegin, copied);
+                offset += copied;
+                dstBegin += copied;
+                count -= copied;
+            }
+            offset -= node.length;
+            node = node.right;
+        }
+    }
+
+    @Override
+    public void insert(int line, int col, CharSequence text) {
+        checkWritable();
+        if (text.length() == 0) {
+            return;
+        }
+        int offset = lineStart(line) + col;
+        int start = addedLength;
+        int breaksBefore = addedBreakCount;
+        append(text);
+        int breaks = addedBreakCount - breaksBefore;
+
+        if (editLength > 0 && offset == editEnd && editBufferEnd == start) {
+            root = resize(root, offset, text.length(), breaks);
+            editLength += text.length();
+        } else {
+            Piece before = offset > 0 ? pieceEndingAt(offset) : null;
+            if (before != null && before.added && before.start + before.length == start) {
+                // typing right after the previous insert only grows its piece
+                root = resize(root, offset, text.length(), breaks);
+                editLength = before.length + text.length();
+            } else {
+                Piece piece = new Piece(true, start, text.length(), breaks, null, null);
+                root = join(before(root, offset), piece, after(root, offset));
+                editLength = text.length();
+            }
+        }
+        editEnd = offset + text.length();
+        editBufferEnd = addedLength;
+        length += text.length();
+        lineCount += breaks;
+        if (cachedLine >= 0 && offset < cachedLineStart) {
+            cachedLineStart += text.length();
+            cachedLine += breaks;
+        }
+    }
+
+    @Override
+    public void delete(int line, int col, int count) {
+        checkWritable();
+        int offset = lineStart(line) + col;
+        int end = Math.min(offset + count, length);
+        if (end <= offset) {
+            return;
+        }
+        if (cachedLine < 0) {
+            // nothing to move
+        } else if (end < cachedLineStart) {
+            // the row is still where it was, moved by the deleted chars
+            cachedLineStart -= end - offset;
+            cachedLine -= countBreaksBetween(offset, end);
+        } else if (offset < cachedLineStart) {
+            cachedLine = -1;
+        }
+        if (editLength > 0 && end == editEnd && end - offset < editLength) {
+            shrinkEditPiece(end - offset);
+            return;
+        }
+        editLength = 0;
+
+        int removedBreaks = countBreaksBetween(offset, end);
+        root = concat(before(root, offset), after(root, end));
+        length -= end - offset;
+        lineCount -= removedBreaks;
+    }
+
+    // deletes the last count chars of the piece typed into, a backspace right after typing,
+    // and takes them back from the add buffer if no snapshot can see them
+    private void shrinkEditPiece(int count) {
+        int removed = countBreaks(true, editBufferEnd - count, editBufferEnd);
+        root = resize(root, editEnd, -count, -removed);
+        if (editBufferEnd == addedLength && editBufferEnd - count >= sharedLength()) {
+            addedLength -= count;
+            addedBreakCount -= removed;
+        }
+        editLength -= count;
+        editBufferEnd -= count;
+        editEnd -= count;
+        length -= count;
+        lineCount -= removed;
+    }
+
+    // number of line breaks in [from, to) of the text
+    private int countBreaksBetween(int from, int to) {
+        return breaksBefore(to) - breaksBefore(from);
+    }
+
+    private int breaksBefore(int offset) {
+        int breaks = 0;
+        Piece node = root;
+        while (node != null) {
+            int leftLength = totalLength(node.left);
+            if (offset < leftLength) {
+                node = node.left;
+                continue;
+            }
+            offset -= leftLength;
+            breaks += totalBreaks(node.left);
+            if (offset < node.length) {
+                return breaks + countBreaks(node.added, node.start, node.start + offset);
+            }
+            offset -= node.length;
+            breaks += node.lineBreaks;
+            node = node.right;
+        }
+        return breaks;
+    }
+
+    @Override
+    public void writeTo(Writer writer, String lineSeparator) throws IOException {
+        for (PieceCursor pieces = new PieceCursor(root, 0); pieces.piece != null;
+             pieces.next()) {
+            Piece piece = pieces.piece;
+            char[] buffer = buffer(piece);
+            int from = piece.start;
+            int end = piece.start + piece.length;
+            if (!lineSeparator.equals("\n")) {
+                for (int i = from; i < end; i++) {
+                    if (buffer[i] == '\n') {
+                        writer.write(buffer, from, i - from);
+                        writer.write(lineSeparator);
+                        from = i + 1;
+                    }
+                }
+            }
+            writer.write(buffer, from, end - from);
+        }
+    }
+
+    @Override
+    public Document snapshot() {
+        if (readOnly) {
+            return new PieceTable(this);
+        }
+        // the screen takes one for every key, only the newest is told apart from the others
+        sharedLength = sharedLength();
+        newestSnapshot = new PieceTable(this);
+        return newestSnapshot;
+    }
+
+    @Override
+    public void release() {
+        released = true;
+    }
+
+    // the part of the add buffer that snapshots still read may point into
+    private int sharedLength() {
+        if (newestSnapshot == null || newestSnapshot.released) {
+            return sharedLength;
+        }
+        return Math.max(sharedLength, newestSnapshot.addedLength);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("document snapshot is read-only");
+        }
+    }
+
+    // the piece ending at offset, null if offset is inside one
+    private Piece pieceEndingAt(int offset) {
+        Piece node = root;
+        while (node != null) {
+            int leftLength = totalLength(node.left);
+            if (offset <= leftLength) {
+                node = node.left;
+            } else if (offset < leftLength + node.length) {
+                return null;
+            } else if (offset == leftLength + node.length) {
+                return node;
+            } else {
+                offset -= leftLength + node.length;
+                node = node.right;
+            }
+        }
+        return null;
+    }
+
+    // the tree with the text [0, offset) of node, a piece across offset is cut
+    private Piece before(Piece node, int offset) {
+        if (node == null || offset <= 0) {
+            return null;
+        }
+        int leftLength = totalLength(node.left);
+        if (offset <= leftLength) {
+            return before(node.left, offset);
+        }
+        int inner = offset - leftLength;
+        if (inner < node.length) {
+            return addLast(node.left, slice(node, 0, inner));
+        }
+        return join(node.left, node, before(node.right, inner - node.length));
+    }
+
+    // the tree with the text of node from offset on, a piece across offset is cut
+    private Piece after(Piece node, int offset) {
+        if (node == null || offset >= node.totalLength) {
+            return null;
+        }
+        int leftLength = totalLength(node.left);
+        if (offset < leftLength) {
+            return join(after(node.left, offset), node, node.right);
+        }
+        int inner = offset - leftLength;
+        if (inner < node.length) {
+            return addFirst(slice(node, inner, node.length), node.right);
+        }
+        return after(node.right, inner - node.length);
+    }
+
+    // the part [from, to) of the text of a piece, as a piece on its own
+    private Piece slice(Piece piece, int from, int to) {
+        return new Piece(piece.added, piece.start + from, to - from,
+            countBreaks(piece.added, piece.start + from, piece.start + to), null, null);
+    }
+
+    // the tree with the piece ending at offset longer by length chars and breaks line breaks
+    private static Piece resize(Piece node, int offset, int length, int breaks) {
+        int leftLength = totalLength(node.left);
+        if (offset <= leftLength) {
+            return new Piece(node.added, node.start, node.length, node.lineBreaks,
+                resize(node.left, offset, length, breaks), node.right);
+        }
+        int end = leftLength + node.length;
+        if (offset == end) {
+            return new Piece(node.added, node.start, node.length + length,
+                node.lineBreaks + breaks, node.left, node.right);
+        }
+        return new Piece(node.added, node.start, node.length, node.lineBreaks, node.left,
+            resize(node.right, offset - end, length, breaks));
+    }
+
+    // the pieces of left, then the piece of middle, then those of right
+    private static Piece join(Piece left, Piece middle, Piece right) {
+        if (left == null) {
+            return addFirst(middle, right);
+        }
+        if (right == null) {
+            return addLast(left, middle);
+        }
+        if (left.height > right.height + 2) {
+            return balance(left, left.left, join(left.right, middle, right));
+        }
+        if (right.height > left.height + 2) {
+            return balance(right, join(left, middle, right.left), right.right);
+        }
+        return node(middle, left, right);
+    }
+
+    private static Piece concat(Piece left, Piece right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        Piece first = right;
+        while (first.left != null) {
+            first = first.left;
+        }
+        return join(left, first, removeFirst(right));
+    }
+
+    private static Piece addFirst(Piece piece, Piece node) {
+        if (node == null) {
+            return node(piece, null, null);
+        }
+        return balance(node, addFirst(piece, node.left), node.right);
+    }
+
+    private static Piece addLast(Piece node, Piece piece) {
+        if (node == null) {
+            return node(piece, null, null);
+        }
+        return balance(node, node.left, addLast(node.right, piece));
+    }
+
+    private static Piece removeFirst(Piece node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        return balance(node, removeFirst(node.left), node.right);
+    }
+
+    // the piece of middle over left and right, rotated if their heights differ by more than two
+    private static Piece balance(Piece middle, Piece left, Piece right) {
+        if (height(left) > height(right) + 2) {
+            if (height(left.left) >= height(left.right)) {
+                return node(left, left.left, node(middle, left.right, right));
+            }
+            return node(left.right, node(left, left.left, left.right.left),
+                node(middle, left.right.right, right));
+        }
+        if (height(right) > height(left) + 2) {
+            if (height(right.right) >= height(right.left)) {
+                return node(right, node(middle, left, right.left), right.right);
+            }
+            return node(right.left, node(middle, left, right.left.left),
+                node(right, right.left.right, right.right));
+        }
+        return node(middle, left, right);
+    }
+
+    // the piece of piece over left and right
+    private static Piece node(Piece piece, Piece left, Piece right) {
+        if (piece.left == left && piece.right == right) {
+            return piece;
+        }
+        return new Piece(piece.added, piece.start, piece.length, piece.lineBreaks, left, right);
+    }
+
+    private static int height(Piece node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static int totalLength(Piece node) {
+        return node == null ? 0 : node.totalLength;
+    }
+
+    private static int totalBreaks(Piece node) {
+        return node == null ? 0 : node.totalBreaks;
+    }
+
+    // offset of the first char of a row, the text length for line == lineCount
+    private int lineStart(int line) {
+        if (line <= 0) {
+            return 0;
+        }
+        if (line >= lineCount) {
+            return length;
+        }
+        if (line == cachedLine) {
+            return cachedLineStart;
+        }
+        // the row starts after the line-th break, found in the piece holding it
+        int offset = 0;
+        int remaining = line;
+        Piece node = root;
+        while (node != null) {
+            int leftBreaks = totalBreaks(node.left);
+            if (remaining <= leftBreaks) {
+                node = node.left;
+                continue;
+            }
+            remaining -= leftBreaks;
+            offset += totalLength(node.left);
+            if (remaining <= node.lineBreaks) {
+                int index = lowerBound(node.added, node.start) + remaining - 1;
+                int position = node.added ? addedBreaks[index] : originalBreaks[index];
+                int start = offset + position - node.start + 1;
+                if (!readOnly) {
+                    cachedLine = line;
+                    cachedLineStart = start;
+                }
+                return start;
+            }
+            remaining -= node.lineBreaks;
+            offset += node.length;
+            node = node.right;
+        }
+        return length;
+    }
+
+    private void append(CharSequence text) {
+        int n = text.length();
+        if (addedLength + n > added.length) {
+            added = Arrays.copyOf(added, Math.max(added.length * 2, addedLength + n));
+        }
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                if (addedBreakCount == addedBreaks.length) {
+                    addedBreaks = Arrays.copyOf(addedBreaks, addedBreaks.length * 2);
+                }
+                addedBreaks[addedBreakCount++] = addedLength;
+            }
+            added[addedLength++] = c;
+        }
+    }
+
+    private char[] buffer(Piece piece) {
+        return piece.added ? added : original;
+    }
+
+    // number of line breaks in [from, to) of a buffer
+    private int countBreaks(boolean inAdded, int from, int to) {
+        return lowerBound(inAdded, to) - lowerBound(inAdded, from);
+    }
+
+    // index of the first line break at or after position
+    private int lowerBound(boolean inAdded, int position) {
+        int[] breaks = inAdded ? addedBreaks : originalBreaks;
+        int low = 0;
+        int high = inAdded ? addedBreakCount : originalBreaks.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (breaks[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
+
+// Read-only view of a file too large to load, mapped into memory instead. Opening it only
+// indexes where rows start, in segments lexed in parallel, and rows are decoded from UTF-8
+// when they are read, through a cache of the recently used ones. Heap use depends on the rows
+// read, not on the file size. '\n' ends a row, a "\r\n" ending is decoded without its '\r'.
+class MappedDocument implements Document {
+    private static final int CHUNK_SIZE = 1 << 30;
+    private static final int SEGMENT_SIZE = 16 << 20;
+    // every SAMPLE_INTERVAL-th row start of a segment is indexed, rows in between are found by
+    // scanning forward from the one before
+    private static final int SAMPLE_INTERVAL = 64;
+    // chars of decoded rows cached per document, the last row read is cached regardless
+    private static final int CACHE_CHARS = 1 << 20;
+    private static final int SEARCH_BLOCK_SIZE = 1 << 16;
+    private static final VarHandle LONGS =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final MappedByteBuffer[] chunks;
+    private final long size;
+    // line breaks before each segment and the offsets after every SAMPLE_INTERVAL-th line
+    // break inside it, starting with the first
+    private final long[] segmentBreaks;
+    private final long[][] segmentSamples;
+    private final int lineCount;
+
+    // recently read rows, least recently used first
+    private final LinkedHashMap<Integer, char[]> cache = new LinkedHashMap<>(256, 0.75f, true);
+    private int cachedChars;
+    private byte[] bytes = new byte[256];
+
+    private MappedDocument(MappedByteBuffer[] chunks, long size, long[] segmentBreaks,
+                           long[][] segmentSamples, int lineCount) {
+        this.chunks = chunks;
+        this.size = size;
+        this.segmentBreaks = segmentBreaks;
+        this.segmentSamples = segmentSamples;
+        this.lineCount = lineCount;
+    }
+
+    static MappedDocument open(Path path) throws IOException {
+        MappedByteBuffer[] chunks;
+        long size;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            size = channel.size();
+            chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < chunks.length; i++) {
+                long position = (long) i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(CHUNK_SIZE, size - position));
+            }
+        }
+
+        int segments = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        long[][] samples = new long[segments][];
+        IntStream.range(0, segments).parallel().forEach(segment ->
+            samples[segment] = indexSegment(chunks, size, segment));
+
+        long[] segmentBreaks = new long[segments + 1];
+        for (int i = 0; i < segments; i++) {
+            segmentBreaks[i + 1] = segmentBreaks[i] + samples[i][0];
+            samples[i] = Arrays.copyOfRange(samples[i], 1, samples[i].length);
+        }
+        long breaks = segmentBreaks[segments];
+        // like a loaded file, a last row without a line break still is a row
+        long lines = breaks + (size > 0 && byteAt(chunks, size - 1) != '\n' ? 1 : 0);
+        if (lines > Integer.MAX_VALUE) {
+            throw new IOException("too many lines: " + lines);
+        }
+        return new MappedDocument(chunks, size, segmentBreaks, samples, (int) lines);
+    }
+
+    // Returns the number of line breaks in a segment followed by the offsets after every
+    // SAMPLE_INTERVAL-th of them. Segments never cross chunks, chunk sizes are multiples of it.
+    private static long[] indexSegment(MappedByteBuffer[] chunks, long size, int segment) {
+        long start = (long) segment * SEGMENT_SIZE;
+        MappedByteBuffer chunk = chunks[(int) (start / CHUNK_SIZE)];
+        int from = (int) (start % CHUNK_SIZE);
+        int to = from + (int) Math.min(SEGMENT_SIZE, size - start);
+
+        long[] samples = new long[16];
+        int sampleCount = 1;
+        long breaks = 0;
+        byte[] block = new byte[64 << 10];
+        for (int offset = from; offset < to; offset += block.length) {
+            int length = Math.min(block.length, to - offset);
+            chunk.get(offset, block, 0, length);
+            for (int i = 0; i < length; i += 8) {
+                if (i + 8 <= length && !hasLineBreak((long) LONGS.get(block, i))) {
+                    continue;
+                }
+                for (int j = i; j < Math.min(i + 8, length); j++) {
+                    if (block[j] == '\n') {
+                        if (breaks % SAMPLE_INTERVAL == 0) {
+                            if (sampleCount == samples.length) {
+                                samples = Arrays.copyOf(samples, samples.length * 2);
+                            }
+                            samples[sampleCount++] = start - from + offset + j + 1;
+                        }
+                        breaks++;
+                    }
+                }
+            }
+        }
+        samples[0] = breaks;
+        return Arrays.copyOf(samples, sampleCount);
+    }
+
+    // whether any of the 8 bytes is a '\n'
+    private static boolean hasLineBreak(long bytes) {
+        long x = bytes ^ 0x0a0a0a0a0a0a0a0aL;
+        return ((x - 0x0101010101010101L) & ~x & 0x8080808080808080L) != 0;
+    }
+
+    private static byte byteAt(MappedByteBuffer[] chunks, long position) {
+        return chunks[(int) (position / CHUNK_SIZE)].get((int) (position % CHUNK_SIZE));
+    }
+
+    @Override
+    public int lineCount() {
+        return lineCount;
+    }
+
+    @Override
+    public int lineLength(int line) {
+        return line(line).length;
+    }
+
+    @Override
+    public char charAt(int line, int col) {
+        return line(line)[col];
+    }
+
+    @Override
+    public void getChars(int line, int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        System.arraycopy(line(line), srcBegin, dst, dstBegin, srcEnd - srcBegin);
+    }
+
+    @Override
+    public void insert(int line, int col, CharSequence text) {
+        throw new UnsupportedOperationException("mapped document is read-only");
+    }
+
+    @Override
+    public void delete(int line, int col, int length) {
+        throw new UnsupportedOperationException("mapped document is read-only");
+    }
+
+    @Override
+    public void writeTo(Writer writer, String lineSeparator) throws IOException {
+        // rows are decoded one by one, bypassing the cache
+        for (int line = 0; line < lineCount; line++) {
+            writer.write(decode(line));
+            writer.write(lineSeparator);
+        }
+    }
+
+    // The mapping and the index never change, a snapshot only gets its own cache, so threads
+    // reading different rows don't evict each other's.
+    @Override
+    public Document snapshot() {
+        return new MappedDocument(chunks, size, segmentBreaks, segmentSamples, lineCount);
+    }
+
+    @Override
+    public void release() {
+        // nothing is reused, the mapping never changes
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    private char[] line(int line) {
+        char[] chars = cache.get(line);
+        if (chars == null) {
+            if (line < 0 || line >= lineCount) {
+                throw new IndexOutOfBoundsException("line " + line);
+            }
+            chars = decode(line);
+            cache.put(line, chars);
+            cachedChars += chars.length;
+            Iterator<char[]> eldest = cache.values().iterator();
+            while (cachedChars > CACHE_CHARS && cache.size() > 1) {
+                cachedChars -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+        return chars;
+    }
+
+    private char[] decode(int line) {
+        long start = lineStart(line);
+        long end = start;
+        while (end < size && byteAt(chunks, end) != '\n') {
+            end++;
+        }
+        if (end > start && byteAt(chunks, end - 1) == '\r') {
+            end--;
+        }
+        int length = Math.toIntExact(end - start);
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        read(start, bytes, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8).toCharArray();
+    }
+
+    // copies length bytes of the file from position on into dst
+    private void read(long position, byte[] dst, int length) {
+        for (int copied = 0; copied < length; ) {
+            long at = position + copied;
+            int count = (int) Math.min(length - copied, CHUNK_SIZE - at % CHUNK_SIZE);
+            chunks[(int) (at / CHUNK_SIZE)].get((int) (at % CHUNK_SIZE), dst, copied, count);
+            copied += count;
+        }
+    }
+
+    // The UTF-8 bytes of the query are searched for in blocks copied out of the mapping, which
+    // overlap by the query length so no match is missed. The row and column of a match are
+    // counted forward from the previous match, or from the nearest indexed row if it is far.
+    @Override
+    public void find(SearchPattern pattern, int fromLine, int toLine, MatchConsumer matches) {
+        long from = fromLine >= lineCount ? size : lineStart(fromLine);
+        long to = toLine >= lineCount ? size : lineStart(toLine);
+        int overlap = pattern.bytes.length - 1;
+        byte[] block = new byte[SEARCH_BLOCK_SIZE + overlap];
+        // row, its start and the UTF-16 column, at position
+        int line = fromLine;
+        long lineOffset = from;
+        int col = 0;
+        long position = from;
+        for (long blockStart = from; blockStart < to; blockStart += SEARCH_BLOCK_SIZE) {
+            int length = (int) Math.min(block.length, to - blockStart);
+            int limit = (int) Math.min(SEARCH_BLOCK_SIZE, to - blockStart);
+            read(blockStart, block, length);
+            int at = 0;
+            while ((at = pattern.indexOf(block, at, length)) >= 0 && at < limit) {
+                long match = blockStart + at;
+                if (match - position > SEARCH_BLOCK_SIZE) {
+                    long indexed = nearestLineStart(match);
+                    if (indexed > position) {
+                        line = lineOf(indexed);
+                        lineOffset = indexed;
+                        col = 0;
+                        position = indexed;
+                    }
+                }
+                for (; position < match; position++) {
+                    byte b = byteAt(chunks, position);
+                    if (b == '\n') {
+                        line++;
+                        lineOffset = position + 1;
+                        col = 0;
+                    } else if ((b & 0xc0) != 0x80) {
+                        // a 4 byte sequence decodes to a surrogate pair
+                        col += (b & 0xf8) == 0xf0 ? 2 : 1;
+                    }
+                }
+                if (!matches.accept(line, col)) {
+                    return;
+                }
+                at++;
+            }
+        }
+    }
+
+    // Rows are read in blocks and decoded into one buffer, bypassing the cache. Only a row that
+    // runs into the next block is copied out of its block first.
+    @Override
+    public void readLines(int fromLine, int toLine, LineConsumer lines) {
+        RowDecoder decoder = new RowDecoder();
+        byte[] block = new byte[SEARCH_BLOCK_SIZE];
+        // start of a row begun in an earlier block
+        byte[] row = new byte[256];
+        int rowLength = 0;
+        int line = fromLine;
+        long position = fromLine >= lineCount ? size : lineStart(fromLine);
+        toLine = Math.min(toLine, lineCount);
+        while (line < toLine) {
+            int length = (int) Math.min(block.length, size - position);
+            read(position, block, length);
+            int start = 0;
+            while (line < toLine) {
+                int lineBreak = indexOfLineBreak(block, start, length);
+                if (lineBreak < 0) {
+                    if (position + length < size) {
+                        break;
+                    }
+                    // the last row has no line break
+                    lineBreak = length;
+                }
+                int chars;
+                if (rowLength == 0) {
+                    chars = decoder.decode(block, start, lineBreak);
+                } else {
+                    row = append(row, rowLength, block, start, lineBreak);
+                    chars = decoder.decode(row, 0, rowLength + lineBreak - start);
+                    rowLength = 0;
+                }
+                if (!lines.accept(line++, decoder.chars, chars)) {
+                    return;
+                }
+                start = lineBreak + 1;
+            }
+            if (start < length) {
+                row = append(row, rowLength, block, start, length);
+                rowLength += length - start;
+            }
+            position += length;
+        }
+    }
+
+    // copies src[from, to) into dst after its first length bytes, growing it if needed
+    private static byte[] append(byte[] dst, int length, byte[] src, int from, int to) {
+        if (dst.length < length + to - from) {
+            dst = Arrays.copyOf(dst, Math.max(length + to - from, dst.length * 2));
+        }
+        System.arraycopy(src, from, dst, length, to - from);
+        return dst;
+    }
+
+    // index of the first '\n' in bytes[from, to), -1 if there is none
+    private static int indexOfLineBreak(byte[] bytes, int from, int to) {
+        int i = from;
+        while (i + 8 <= to && !hasLineBreak((long) LONGS.get(bytes, i))) {
+            i += 8;
+        }
+        for (; i < to; i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // decodes the rows read by readLines into one buffer
+    private static final class RowDecoder {
+        private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        char[] chars = new char[256];
+
+        // decodes a row's bytes [from, to) into chars, without a '\r' ending, and returns the
+        // number of chars. ASCII, checked 8 bytes at a time, is only widened.
+        int decode(byte[] bytes, int from, int to) {
+            if (to > from && bytes[to - 1] == '\r') {
+                to--;
+            }
+            int length = to - from;
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            int i = from;
+            while (i + 8 <= to && ((long) LONGS.get(bytes, i) & 0x8080808080808080L) == 0) {
+                i += 8;
+            }
+            while (i < to && bytes[i] >= 0) {
+                i++;
+            }
+            if (i == to) {
+                for (int j = 0; j < length; j++) {
+                    chars[j] = (char) bytes[from + j];
+                }
+                return length;
+            }
+            CharBuffer decoded = CharBuffer.wrap(chars);
+            utf8.reset().decode(ByteBuffer.wrap(bytes, from, length), decoded, true);
+            utf8.flush(decoded);
+            return decoded.position();
+        }
+    }
+
+    // start of an indexed row at or before position, 0 if there is none
+    private long nearestLineStart(long position) {
+        for (int segment = (int) (position / SEGMENT_SIZE); segment >= 0; segment--) {
+            long[] samples = segmentSamples[segment];
+            int index = Arrays.binarySearch(samples, position);
+            index = index >= 0 ? index : -index - 2;
+            if (index >= 0) {
+                return samples[index];
+            }
+        }
+        return 0;
+    }
+
+    // row starting at an offset returned by nearestLineStart
+    private int lineOf(long lineStart) {
+        if (lineStart == 0) {
+            return 0;
+        }
+        int segment = (int) ((lineStart - 1) / SEGMENT_SIZE);
+        int index = Arrays.binarySearch(segmentSamples[segment], lineStart);
+        return (int) (segmentBreaks[segment] + (long) index * SAMPLE_INTERVAL + 1);
+    }
+
+    // offset of the first byte of a row, the row after line break number line - 1
+    private long lineStart(int line) {
+        if (line == 0) {
+            return 0;
+        }
+        long lineBreak = line - 1;
+        int low = 0;
+        int high = segmentSamples.length - 1;
+        // the last segment with line breaks before the one looked for
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segmentBreaks[mid] <= lineBreak) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int inSegment = (int) (lineBreak - segmentBreaks[low]);
+        long position = segmentSamples[low][inSegment / SAMPLE_INTERVAL];
+        for (int skip = inSegment % SAMPLE_INTERVAL; skip > 0; position++) {
+            if (byteAt(chunks, position) == '\n') {
+                skip--;
+            }
+        }
+        return position;
+    }
+}
+
+// Writer that encodes into a buffer and writes it to a channel whenever it fills up,
+// so the text reaches the channel in large writes. Closing it writes what is left but doesn't
+// close the channel, which belongs to the caller.
+class ChannelWriter extends Writer {
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars;
+    private final ByteBuffer bytes;
+    // bytes written to the channel so far, readable from other threads
+    private final AtomicLong written;
+
+    ChannelWriter(WritableByteChannel channel, Charset charset, int bufferSize,
+                  AtomicLong written) {
+        this.channel = channel;
+        this.written = written;
+        encoder = charset.newEncoder();
+        chars = CharBuffer.allocate(8192);
+        // a heap buffer, the encoders only have their fast path for arrays
+        bytes = ByteBuffer.allocate(bufferSize);
+    }
+
+    @Override
+    public void write(char[] text, int offset, int length) throws IOException {
+        if (chars.position() == 0 && length >= chars.capacity()) {
+            // long runs are encoded straight from text, all but a trailing high surrogate
+            CharBuffer input = CharBuffer.wrap(text, offset, length);
+            encode(input, false);
+            offset = input.position();
+            length = input.remaining();
+        }
+        while (length > 0) {
+            int count = Math.min(length, chars.remaining());
+            chars.put(text, offset, count);
+            offset += count;
+            length -= count;
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+        }
+    }
+
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, chars.remaining());
+            chars.put(text, offset, offset + count);
+            offset += count;
+            length -= count;
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        encode(false);
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        encode(true);
+        while (encoder.flush(bytes).isOverflow()) {
+            drain();
+        }
+        drain();
+    }
+
+    // encodes the buffered chars, a high surrogate at the end waits for its low surrogate
+    // unless the input ends
+    private void encode(boolean endOfInput) throws IOException {
+        chars.flip();
+        encode(chars, endOfInput);
+        chars.compact();
+    }
+
+    private void encode(CharBuffer input, boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(input, bytes, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            } else {
+                if (result.isError()) {
+                    result.throwException();
+                }
+                break;
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            written.addAndGet(channel.write(bytes));
+        }
+        bytes.clear();
+    }
+}
+
+// Input from the terminal, read as many bytes at a time as are there. A paste, which can be
+// megabytes, is collected in bulk rather than a byte per call.
+class TerminalInput {
+    private final InputStream in;
+    private final byte[] bytes = new byte[1 << 16];
+    private int position;
+    private int limit;
+
+    TerminalInput(InputStream in) {
+        this.in = in;
+    }
+
+    // next byte, waiting for it, -1 at the end of the input
+    int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return bytes[position++] & 0xff;
+    }
+
+    // number of bytes that can be read without waiting
+    int available() throws IOException {
+        return limit - position + in.available();
+    }
+
+    // Reads the UTF-8 text up to end, which is read as well but left out, or up to the end of
+    // the input. The first byte of end must not occur again in it.
+    String readUntil(byte[] end) throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < end.length && (position < limit || fill())) {
+            int start = position;
+            while (position < limit && matched < end.length) {
+                byte b = bytes[position++];
+                if (b == end[matched]) {
+                    matched++;
+                } else {
+                    matched = b == end[0] ? 1 : 0;
+                }
+            }
+            text.write(bytes, start, position - start);
+        }
+        byte[] read = text.toByteArray();
+        return new String(read, 0, read.length - matched, StandardCharsets.UTF_8);
+    }
+
+    private boolean fill() throws IOException {
+        int count = in.read(bytes, 0, bytes.length);
+        if (count <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+}
+
+// Output of a frame to the terminal, encoded to UTF-8 into a buffer reused from frame to frame
+// and written with one channel write. Numbers and chars are encoded in place, and escape
+// sequences come as precomputed bytes, so building a frame allocates nothing.
+class TerminalOutput {
+    private final WritableByteChannel channel;
+    private byte[] bytes = new byte[1 << 14];
+    private ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    private int length;
+
+    TerminalOutput(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    static byte[] ascii(String sequence) {
+        return sequence.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // number of bytes appended since the last flush
+    int length() {
+        return length;
+    }
+
+    TerminalOutput append(byte[] sequence) {
+        ensureRoom(sequence.length);
+        System.arraycopy(sequence, 0, bytes, length, sequence.length);
+        length += sequence.length;
+        return this;
+    }
+
+    TerminalOutput append(char c) {
+        return appendCodePoint(c);
+    }
+
+    TerminalOutput appendCodePoint(int codePoint) {
+        ensureRoom(4);
+        if (codePoint < 0x80) {
+            bytes[length++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            bytes[length++] = (byte) (0xc0 | codePoint >> 6);
+            bytes[length++] = (byte) (0x80 | codePoint & 0x3f);
+        } else if (codePoint < 0x10000) {
+            bytes[length++] = (byte) (0xe0 | codePoint >> 12);
+            bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+            bytes[length++] = (byte) (0x80 | codePoint & 0x3f);
+        } else {
+            bytes[length++] = (byte) (0xf0 | codePoint >> 18);
+            bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+            bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+            bytes[length++] = (byte) (0x80 | codePoint & 0x3f);
+        }
+        return this;
+    }
+
+    // appends a number that isn't negative in decimal
+    TerminalOutput appendNumber(int number) {
+        ensureRoom(10);
+        int digits = 1;
+        for (int n = number; n >= 10; n /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    // drops what was appended since the last flush
+    void discard() {
+        length = 0;
+    }
+
+    synchronized void flush() throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        length = 0;
+    }
+
+    // writes a sequence right away, between frames, from any thread
+    synchronized void write(byte[] sequence) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(sequence);
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    private void ensureRoom(int count) {
+        if (length + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(length + count, bytes.length * 2));
+            buffer = ByteBuffer.wrap(bytes);
+        }
+    }
+}
+
+// Append-only log of the edits made to a file since it was last saved, replayed after a crash.
+// Edits are buffered, and a writer thread appends each batch with one write and one fsync, so
+// edits made within COMMIT_MILLIS of each other share them. Saving compacts the log down to
+// the edits made after the saved snapshot. The header holds the size and modification time of
+// the file the edits apply to, a log written for other contents of the file is not replayed.
+class Journal {
+    private static final int MAGIC = 0x6b6a6e6c;
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 2;
+    private static final long COMMIT_MILLIS = 50;
+
+    private final Path file;
+    private final Path path;
+    private final Thread writer;
+
+    // guarded by this
+    private ByteBuffer pending = ByteBuffer.allocate(4096);
+    // bytes of records appended since the log was started
+    private long appended;
+    private long compactMark = -1;
+    private boolean closed;
+
+    // used by the writer thread only
+    private FileChannel channel;
+    private ByteBuffer writing = ByteBuffer.allocate(4096);
+    // bytes of records written, and the first of them still in the log file
+    private long written;
+    private long fileStart;
+
+    private volatile Exception failure;
+
+    private Journal(Path file, FileChannel channel, long appended) {
+        this.file = file;
+        this.path = pathOf(file);
+        this.channel = channel;
+        this.appended = appended;
+        written = appended;
+        writer = Thread.ofVirtual().name("journal").start(this::run);
+    }
+
+    static Path pathOf(Path file) {
+        return file.toAbsolutePath().resolveSibling("." + file.getFileName() + ".journal");
+    }
+
+    // Starts the log of file, after the recovered records if there are any, or empty.
+    static Journal open(Path file, ByteBuffer recovered) throws IOException {
+        Path path = pathOf(file);
+        if (recovered != null) {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            // drops a record cut short by the crash
+            channel.truncate(HEADER_SIZE + recovered.limit());
+            channel.position(HEADER_SIZE + recovered.limit());
+            return new Journal(file, channel, recovered.limit());
+        }
+        // read as well, compact reads back the records written after a save started
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        writeFully(channel, header(file));
+        channel.force(false);
+        return new Journal(file, channel, 0);
+    }
+
+    // Returns the complete records of the log of file, null if there is none or it was written
+    // for other contents of the file.
+    static ByteBuffer recover(Path file) throws IOException {
+        Path path = pathOf(file);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (log.remaining() < HEADER_SIZE || !log.slice(0, HEADER_SIZE).equals(header(file))) {
+            return null;
+        }
+        log.position(HEADER_SIZE);
+        int end = log.position();
+        while (log.remaining() >= 13) {
+            byte operation = log.get();
+            log.position(log.position() + 8);
+            int length = log.getInt();
+            // a torn length can be anything, length * 2 would overflow past 2^30
+            if (operation != INSERT && operation != DELETE || length < 0 ||
+                operation == INSERT && length > log.remaining() / 2) {
+                break;
+            }
+            log.position(log.position() + (operation == INSERT ? length * 2 : 0));
+            end = log.position();
+        }
+        return log.slice(HEADER_SIZE, end - HEADER_SIZE);
+    }
+
+    // Applies records to document up to the first one that doesn't fit its text, returns the
+    // bytes of the records applied.
+    static int replay(ByteBuffer records, Document document) {
+        int start = records.position();
+        while (records.hasRemaining()) {
+            int applied = records.position() - start;
+            byte operation = records.get();
+            int line = records.getInt();
+            int col = records.getInt();
+            int length = records.getInt();
+            // the row after the last only takes an insert at its start
+            int lines = document.lineCount();
+            if (line < 0 || line > lines || col < 0 ||
+                col > (line < lines ? document.lineLength(line) : 0) ||
+                line == lines && operation != INSERT) {
+                return applied;
+            }
+            if (operation == INSERT) {
+                char[] text = new char[length];
+                records.asCharBuffer().get(text);
+                records.position(records.position() + length * 2);
+                document.insert(line, col, CharBuffer.wrap(text));
+            } else {
+                document.delete(line, col, length);
+            }
+        }
+        return records.position() - start;
     }
 
-    ACTION action;
-    int x;
-    int y;
-    int key;
+    synchronized void insert(int line, int col, CharSequence text) {
+        ByteBuffer record = append(13 + text.length() * 2);
+        record.put(INSERT).putInt(line).putInt(col).putInt(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            record.putChar(text.charAt(i));
+        }
+    }
+
+    synchronized void delete(int line, int col, int length) {
+        append(13).put(DELETE).putInt(line).putInt(col).putInt(length);
+    }
+
+    // position of the next record, for compact
+    synchronized long mark() {
+        return appended;
+    }
+
+    // Drops the records before mark once the writer thread gets to it, file now holds them.
+    synchronized void compact(long mark) {
+        compactMark = mark;
+        LockSupport.unpark(writer);
+    }
+
+    // writes the records still buffered and stops the writer thread
+    void close() throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+        }
+        LockSupport.unpark(writer);
+        writer.join();
+    }
+
+    Path path() {
+        return path;
+    }
+
+    boolean failed() {
+        return failure != null;
+    }
+
+    private ByteBuffer append(int size) {
+        if (pending.position() == 0) {
+            // the first record of a batch wakes the writer thread up
+            LockSupport.unpark(writer);
+        }
+        if (pending.remaining() < size) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                pending.position() + size));
+            pending = larger.put(pending.flip());
+        }
+        appended += size;
+        return pending;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                LockSupport.park(this);
+                // lets the batch grow
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(COMMIT_MILLIS));
+                long mark;
+                boolean stop;
+                synchronized (this) {
+                    ByteBuffer batch = pending;
+                    pending = writing;
+                    writing = batch;
+                    mark = compactMark;
+                    compactMark = -1;
+                    stop = closed;
+                }
+                if (writing.position() > 0) {
+                    written += writing.position();
+                    writeFully(channel, writing.flip());
+                    writing.clear();
+                    channel.force(false);
+                }
+                if (mark >= 0) {
+                    compact(mark, written);
+                }
+                if (stop) {
+                    channel.close();
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the status line warns from now on, nothing is written over the screen
+            failure = e;
+        }
+    }
+
+    // rewrites the log with the header of the saved file and the records after mark
+    private void compact(long mark, long end) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate((int) (end - mark));
+        while (records.hasRemaining()) {
+            channel.read(records, HEADER_SIZE + mark - fileStart + records.position());
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel compacted = FileChannel.open(temp, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(compacted, header(file));
+            writeFully(compacted, records.flip());
+            compacted.force(false);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        channel.close();
+        // not APPEND, which can't be opened for reading
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        fileStart = mark;
+    }
+
+    private static ByteBuffer header(Path file) throws IOException {
+        long size = -1;
+        long modified = -1;
+        if (Files.exists(file)) {
+            size = Files.size(file);
+            modified = Files.getLastModifiedTime(file).toMillis();
+        }
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(size).putLong(modified)
+            .flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+}
+
+// Undo history of a file kept on disk next to it, so edits saved in one session can be undone in
+// the next. Edits that fall out of the history kept in memory, and the ones kept when the file
+// is saved, are appended as records pointing back at the edit before them. Every write ends
+// with a trailer holding the newest edit of the saved text and a hash of that text. Nothing is
+// read when the file is opened: the trailer is read when the history is first written to or
+// undone past, the records are mapped only to be undone, and only once the text left after
+// undoing this session's edits matches the hash.
+class UndoFile {
+    private static final int MAGIC = 0x6b756e64;
+    private static final int HEADER_SIZE = 4;
+    // kind, offset of the edit before, position of the text, the cursor before and after the
+    // edit, length of the text in UTF-8
+    private static final int RECORD_SIZE = 1 + 8 + 4 * 6 + 4;
+    private static final int PREVIOUS = 1, LINE = 9, COL = 13, BEFORE_LINE = 17, BEFORE_COL = 21,
+        AFTER_LINE = 25, AFTER_COL = 29, LENGTH = 33;
+    // offset of the newest edit of the saved text, hash of that text, magic
+    private static final int TRAILER_SIZE = 8 + 8 + 4;
+    private static final int FLUSH_SIZE = 1 << 16;
+    // a save starts the file over once it grows past this, it can't be mapped past 2 GB
+    private static final long SIZE_LIMIT = 64 << 20;
+
+    private final Path path;
+    // whether the contents on disk are for another text, written when the file was saved as
+    private boolean replace;
+    // null until the file is first used
+    private FileChannel channel;
+    private long size;
+    private ByteBuffer pending = ByteBuffer.allocate(4096);
+    private MappedByteBuffer mapped;
+
+    // the newest edit on disk that is not undone, -1 if there is none
+    private long head = -1;
+    private long savedHead = -1;
+    private long savedHash;
+    // whether the text is known to be the saved one when head gets to savedHead
+    private boolean checked;
+    private boolean stale;
+    // edits undone from the file, the last one is redone first
+    private long[] undone = new long[16];
+    private int undoneCount;
+
+    // whether a save took the records before pending, which are written by the saver thread
+    private boolean saving;
+
+    private IOException failure;
+
+    // Records taken for a save, to be written at position by the saver thread once the text is
+    // saved, with a trailer naming head as the newest edit of it, or the one before the save
+    // if it failed.
+    static final class Batch {
+        private final ByteBuffer records;
+        private final long position;
+        private final long head;
+        private final long previousHead;
+        private final long previousHash;
+        // set by the saver thread, read after its result is taken
+        private IOException failure;
+
+        private Batch(ByteBuffer records, long position, long head, long previousHead,
+            long previousHash) {
+            this.records = records;
+            this.position = position;
+            this.head = head;
+            this.previousHead = previousHead;
+            this.previousHash = previousHash;
+        }
+    }
+
+    // the undo file of file, or a new one replacing it when replace is set
+    UndoFile(Path file, boolean replace) {
+        path = file.toAbsolutePath().resolveSibling("." + file.getFileName() + ".undo");
+        this.replace = replace;
+    }
+
+    // Appends an edit after the one at previous, returns its offset or -1 if it can't be
+    // written. The text is as it is in the document.
+    long append(long previous, int kind, int line, int col, int beforeLine, int beforeCol,
+        int afterLine, int afterCol, String text) {
+        if (!open(true)) {
+            return -1;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        reserve(RECORD_SIZE + bytes.length);
+        long offset = size + pending.position();
+        pending.put((byte) kind).putLong(previous).putInt(line).putInt(col).putInt(beforeLine)
+            .putInt(beforeCol).putInt(afterLine).putInt(afterCol).putInt(bytes.length)
+            .put(bytes);
+        if (pending.position() >= FLUSH_SIZE && !saving) {
+            write();
+        }
+        return offset;
+    }
+
+    long head() {
+        return open(true) ? head : -1;
+    }
+
+    // the edit at offset dropped out of the history kept in memory
+    void setHead(long offset) {
+        head = offset;
+    }
+
+    // Starts the file over if it grew past SIZE_LIMIT and nothing undone from it can be redone,
+    // every edit written before is dropped.
+    boolean startOver() {
+        if (!open(true) || size <= SIZE_LIMIT || undoneCount > 0) {
+            return false;
+        }
+        try {
+            channel.truncate(HEADER_SIZE);
+        } catch (IOException e) {
+            failure = e;
+            return false;
+        }
+        size = HEADER_SIZE;
+        pending.clear();
+        mapped = null;
+        head = savedHead = -1;
+        checked = true;
+        return true;
+    }
+
+    // a save starts, records appended from now on stay in memory until it is done
+    void beginSave() {
+        saving = true;
+    }
+
+    // Takes the records appended so far for the saver thread, which writes them with write,
+    // head being the newest edit of the text saved. Returns null if the file can't be written.
+    Batch take(long head) {
+        if (!open(true)) {
+            saving = false;
+            return null;
+        }
+        Batch batch = new Batch(pending.flip(), size, head, savedHead, savedHash);
+        size += pending.remaining() + TRAILER_SIZE;
+        pending = ByteBuffer.allocate(4096);
+        return batch;
+    }
+
+    // Called on the saver thread once the text is saved, or failed to be: writes the records
+    // of batch and its trailer, and forces them to disk. The edits appended meanwhile go after
+    // them, so nothing else is written until saved is called.
+    void write(Batch batch, boolean saved, long hash) {
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE)
+            .putLong(saved ? batch.head : batch.previousHead)
+            .putLong(saved ? hash : batch.previousHash).putInt(MAGIC).flip();
+        try {
+            int length = batch.records.remaining();
+            writeFully(batch.records, batch.position);
+            writeFully(trailer, batch.position + length);
+            channel.force(false);
+        } catch (IOException e) {
+            batch.failure = e;
+        }
+    }
+
+    // The save that took batch is done, and if saved is set the text saved is the one after
+    // its head. Writes the records that waited for it.
+    void saved(Batch batch, boolean saved, long hash) {
+        saving = false;
+        if (batch.failure != null) {
+            failure = batch.failure;
+            return;
+        }
+        if (saved) {
+            savedHead = batch.head;
+            savedHash = hash;
+            checked = true;
+        }
+        if (pending.position() > 0) {
+            write();
+        }
+    }
+
+    // Returns the offset of the edit to undo, -1 if there is none. The first time this
+    // session's edits are all undone, text is checked against the hash of the saved text.
+    long undo(Document text) {
+        if (!open(false) || head < 0) {
+            return -1;
+        }
+        if (head == savedHead && !checked) {
+            checked = true;
+            if (hash(text) != savedHash) {
+                // changed by something else, the edits don't apply to it
+                stale = true;
+                head = -1;
+                return -1;
+            }
+        }
+        if (pending.position() > 0) {
+            write();
+        }
+        if (head + RECORD_SIZE > (mapped == null ? 0 : mapped.limit())) {
+            try {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (IOException e) {
+                failure = e;
+                return -1;
+            }
+        }
+        if (undoneCount == undone.length) {
+            undone = Arrays.copyOf(undone, undoneCount * 2);
+        }
+        long edit = head;
+        undone[undoneCount++] = edit;
+        head = mapped.getLong((int) edit + PREVIOUS);
+        return edit;
+    }
+
+    // the offset of the edit to redo, -1 if there is none
+    long redo() {
+        if (undoneCount == 0) {
+            return -1;
+        }
+        head = undone[--undoneCount];
+        return head;
+    }
+
+    // a new edit was made, what was undone can't be redone
+    void dropRedo() {
+        undoneCount = 0;
+    }
+
+    // an edit wasn't kept, the ones before it can't be undone
+    void forget() {
+        head = -1;
+        undoneCount = 0;
+    }
+
+    int kind(long edit) {
+        return mapped.get((int) edit);
+    }
+
+    int line(long edit) {
+        return mapped.getInt((int) edit + LINE);
+    }
+
+    int col(long edit) {
+        return mapped.getInt((int) edit + COL);
+    }
+
+    int cursorLine(long edit, boolean before) {
+        return mapped.getInt((int) edit + (before ? BEFORE_LINE : AFTER_LINE));
+    }
+
+    int cursorCol(long edit, boolean before) {
+        return mapped.getInt((int) edit + (before ? BEFORE_COL : AFTER_COL));
+    }
+
+    String text(long edit) {
+        int length = mapped.getInt((int) edit + LENGTH);
+        return StandardCharsets.UTF_8.decode(mapped.slice((int) edit + RECORD_SIZE, length))
+            .toString();
+    }
+
+    // whether the undo history was dropped because the file changed after it was saved
+    boolean stale() {
+        return stale;
+    }
+
+    boolean failed() {
+        return failure != null;
+    }
+
+    // FNV-1a hash of the chars of text, lines separated by '\n'
+    static long hash(Document text) {
+        long[] hash = {0xcbf29ce484222325L};
+        Writer writer = new Writer() {
+            @Override
+            public void write(char[] chars, int from, int length) {
+                long h = hash[0];
+                for (int i = from; i < from + length; i++) {
+                    h = (h ^ chars[i]) * 0x100000001b3L;
+                }
+                hash[0] = h;
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try {
+            text.writeTo(writer, "\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return hash[0];
+    }
+
+    // Opens the file and reads its trailer, creating it first if create is set. Contents that
+    // are not an undo file are dropped.
+    private boolean open(boolean create) {
+        if (channel != null || failure != null) {
+            return failure == null;
+        }
+        if (!create && !Files.exists(path)) {
+            return false;
+        }
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            if (!replace && size >= HEADER_SIZE + TRAILER_SIZE) {
+                readFully(header, 0);
+                readFully(trailer, size - TRAILER_SIZE);
+            }
+            long offset = trailer.getLong(0);
+            if (header.getInt(0) == MAGIC && trailer.getInt(16) == MAGIC &&
+                offset >= -1 && offset <= size - TRAILER_SIZE - RECORD_SIZE) {
+                head = savedHead = offset;
+                savedHash = trailer.getLong(8);
+            } else {
+                channel.truncate(0);
+                writeFully(header.clear().putInt(MAGIC).flip(), 0);
+                size = HEADER_SIZE;
+                checked = true;
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        return failure == null;
+    }
+
+    // writes the pending records and a trailer after them
+    private void write() {
+        reserve(TRAILER_SIZE);
+        pending.putLong(savedHead).putLong(savedHash).putInt(MAGIC).flip();
+        try {
+            int length = pending.remaining();
+            writeFully(pending, size);
+            size += length;
+        } catch (IOException e) {
+            failure = e;
+        }
+        pending.clear();
+    }
+
+    private void reserve(int length) {
+        if (pending.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                pending.position() + length));
+            pending = larger.put(pending.flip());
+        }
+    }
+
+    private void readFully(ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position()) < 0) {
+                throw new IOException("Undo file cut short");
+            }
+        }
+    }
 
-    public EditorAction(ACTION action, int x, int y, int key) {
-        this.action = action;
-        this.x = x;
-        this.y = y;
-        this.key = key;
+    private void writeFully(ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes, position + bytes.position());
+        }
     }
 }
 
@@ -64,6 +2864,11 @@ public class Main {
     private static final int ARROW_UP = 1000, ARROW_DOWN = 1001, ARROW_LEFT = 1002, ARROW_RIGHT =
         1003, PAGE_UP = 1004, PAGE_DOWN = 1005, HOME_KEY = 1006, END_KEY = 1007, DELETE_KEY = 1008,
         BACKSPACE = 127;
+    // a paste, its text is in pastedText
+    private static final int PASTE = 1009;
+    // the terminal reported its size, which is now the screen's, or a size nobody asked for that
+    // is ignored: either way only the frame is drawn again
+    private static final int RESIZE = 1010;
 
     private static final int HL_HIGHLIGHT_NUMBERS = 1 << 0;
     private static final int HL_HIGHLIGHT_STRING = 1 << 1;
@@ -88,8 +2893,67 @@ public class Main {
             "char", "final", "interface", "static", "void",
             "class", "finally", "long", "strictfp", "volatile",
             "const", "float", "native", "super", "while"};
-    private static final String SEPARATORS = " ,.()+-/*=~%<>[];";
-    private static final int MAX_ACTION_HISTORY = 20;
+    // bounds of the undo history: edits of 10 ints each, and their chars, about 3 MB
+    private static final int UNDO_EDITS = 1 << 14;
+    private static final int UNDO_CHARS = 1 << 20;
+    // files at least this large are mapped and opened read-only instead of loaded
+    private static final long MAPPED_FILE_SIZE = 64 << 20;
+    // most matches of a query kept, all are counted but search steps through the first ones
+    private static final int SEARCH_MATCHES_KEPT = 1 << 20;
+    // matches of a query are narrowed down from those of a shorter one when there are fewer than
+    // one per NARROW_RATIO rows
+    private static final int NARROW_RATIO = 16;
+    // chars encoded, and bytes written to the file, at a time when saving
+    private static final int SAVE_BUFFER_SIZE = 1 << 20;
+    // rows between two saved multiline comment states
+    private static final int HIGHLIGHT_CHECKPOINT_INTERVAL = 256;
+    // number of recent edits whose row is remembered, highlights from older snapshots are dropped
+    private static final int HIGHLIGHT_EDIT_LOG = 256;
+    // longest the screen waits for the highlighter thread before drawing stale highlights
+    private static final long HIGHLIGHT_WAIT_MILLIS = 5;
+    // longest the find prompt waits for a search before drawing the screen without its matches
+    private static final long SEARCH_WAIT_MILLIS = 5;
+    // while keys keep coming, a frame is drawn at most this often
+    private static final long FRAME_INTERVAL_NANOS = 16_000_000;
+    // a screen cell holds its char, then its color, 0 for the default one, then this flag
+    private static final int CELL_INVERTED = 1 << 24;
+    // color each highlight is drawn in, by id, 0 for the default one, and the escape sequence
+    // selecting each color
+    private static final int[] HIGHLIGHT_COLORS = new int[HIGHLIGHT.values().length];
+    private static final byte[][] COLOR_ESCAPES = new byte[40][];
+
+    static {
+        COLOR_ESCAPES[0] = TerminalOutput.ascii("\033[39m");
+        for (HIGHLIGHT highlight : HIGHLIGHT.values()) {
+            if (highlight != HIGHLIGHT.HL_NORMAL) {
+                int color = editorSyntaxToColor(highlight);
+                HIGHLIGHT_COLORS[highlight.id] = color;
+                COLOR_ESCAPES[color] = TerminalOutput.ascii("\033[" + color + "m");
+            }
+        }
+    }
+
+    private static final byte[] CSI = TerminalOutput.ascii("\033[");
+    private static final byte[] HIDE_CURSOR = TerminalOutput.ascii("\033[?25l");
+    private static final byte[] SHOW_CURSOR = TerminalOutput.ascii("\033[?25h");
+    private static final byte[] CLEAR_LINE = TerminalOutput.ascii("\033[K");
+    private static final byte[] CLEAR_SCREEN = TerminalOutput.ascii("\033[2J");
+    private static final byte[] CURSOR_HOME = TerminalOutput.ascii("\033[H");
+    private static final byte[] INVERT = TerminalOutput.ascii("\033[7m");
+    private static final byte[] INVERT_OFF = TerminalOutput.ascii("\033[27m");
+    private static final byte[] RESET_SCROLL_REGION = TerminalOutput.ascii("\033[r");
+    // the terminal marks a paste with \033[200~ and PASTE_END once bracketed paste is on
+    private static final byte[] BRACKETED_PASTE_ON = TerminalOutput.ascii("\033[?2004h");
+    private static final byte[] BRACKETED_PASTE_OFF = TerminalOutput.ascii("\033[?2004l");
+    private static final byte[] PASTE_END = TerminalOutput.ascii("\033[201~");
+    // Asks the terminal for its size: the cursor is moved as far as it goes, its position
+    // reported as \033[rows;colsR, and moved back.
+    private static final byte[] REPORT_SIZE =
+        TerminalOutput.ascii("\0337\033[999;999H\033[6n\0338");
+    // REPORT_SIZE sent and not answered yet, keys like xterm's Shift-F3 (\033[1;2R) look the same
+    private static final AtomicInteger sizeQueries = new AtomicInteger();
+    // time a frame spends matching a regex on the rows it draws
+    private static final long VISIBLE_REGEX_NANOS = 10_000_000;
 
     private static EditorSyntax[] HLDB =
         {new EditorSyntax("c", C_HL_EXTENSIONS, "//", "/*", "*/", C_HL_KEYWORDS,
@@ -105,7 +2969,41 @@ public class Main {
         HL_STRING,
         HL_COMMENT,
         HL_KEYWORD,
-        HL_MLCOMMENT
+        HL_MLCOMMENT;
+
+        // rows store one byte per char, the ordinal of its highlight
+        final byte id = (byte) ordinal();
+
+        private static final HIGHLIGHT[] BY_ID = values();
+
+        static HIGHLIGHT of(byte id) {
+            return BY_ID[id];
+        }
+    }
+
+    // rows [firstRow, lastRow] of text to lex, with the comment state before firstRow if it is
+    // known, otherwise it is lexed from the valid checkpoints
+    private record HighlightJob(long id, long version, Document text, EditorSyntax syntax,
+                                int firstRow, int lastRow, boolean startKnown,
+                                boolean startInComment, boolean[] checkpoints) {
+    }
+
+    // rows is empty when the job was given up for a newer one, only checkpoints are kept then
+    private record HighlightResult(long jobId, long version, int firstRow, byte[][] rows,
+                                   boolean[] endInComment, boolean[] checkpoints,
+                                   int validCheckpoints) {
+    }
+
+    // the first matches of a query in document order, out of count found
+    private record Search(String query, long[] matches, long count) {
+        boolean complete() {
+            return matches.length == count;
+        }
+    }
+
+    // outcome of a save of the snapshot taken after version edits, with the undo file records
+    // written after it, error is null if it succeeded
+    private record SaveResult(long version, UndoFile.Batch undo, long hash, Exception error) {
     }
 
     // Number of extra ctrl-q action needed to exit the application,
@@ -113,7 +3011,28 @@ public class Main {
     private static final int QUIT_TIMES = 1;
     private static final int DIRECTION_FORWARD = 1, DIRECTION_BACKWARD = -1;
 
-    private static int lastMatchRow = -1, direction = DIRECTION_FORWARD;
+    private static int lastMatchRow = -1, lastMatchCol, direction = DIRECTION_FORWARD;
+    // matches of the queries typed in the find prompt, each extending the one before
+    private static final List<Search> searches = new ArrayList<>();
+    // the search running on the common fork/join pool, null when there is none
+    private static SearchTask searching;
+    private static String searchingQuery;
+    // whether the find prompt takes a regex instead of a literal query
+    private static boolean regexSearch;
+    // query whose matches are drawn over the highlight, a literal or a regex, both null when
+    // there is none
+    private static SearchPattern searchPattern;
+    private static Pattern searchRegex;
+    // why the regex typed doesn't compile, null if it does
+    private static String searchError;
+    // search the cursor was moved to the match shownMatch of, null if none
+    private static Search shownSearch;
+    private static int shownMatch;
+    // the search status last shown for an error and for a match, and what they were made of
+    private static String statusSearchError, searchErrorStatus;
+    private static Search statusSearch;
+    private static int statusMatch;
+    private static String matchStatus;
     private static int quitTimes = QUIT_TIMES;
 
     // screen height
@@ -128,21 +3047,118 @@ public class Main {
     private static int yOffset;
     private static int xOffset;
     private static String originalTerminalSettings;
-    private static String statusMessage;
-    private static List<String> content;
-    private static List<List<HIGHLIGHT>> highlightedContent;
-    private static List<Boolean> rowInComment;
+    // "rows cols" as stty told at startup
+    private static String windowSize;
+    // a message, or statusText
+    private static CharSequence statusMessage;
+    // the status bar buildStatusMessage shows, and what it was built from: it is only built
+    // again when one of them changes
+    private static final StringBuilder statusText = new StringBuilder();
+    private static int statusCx = -1, statusCy = -1, statusFlags;
+    private static String statusFileName;
+    private static EditorSyntax statusSyntax;
+    private static Document document;
+
+    // Highlighting is lazy: only the rows about to be drawn are lexed, by the highlighter thread
+    // on a snapshot of the document, into a cache of slots indexed by row. A row starts in the
+    // multiline comment state its row above ended in, taken from the cache, or lexed forward
+    // from the nearest checkpoint. Edited rows and the rows below them turn stale, they are
+    // drawn with their last highlight until the highlighter thread delivers new ones.
+    private static byte[][] highlightedContent;
+    // row held by each slot, -1 if none
+    private static int[] highlightedRows;
+    // multiline comment state at the end of each slot's row
+    private static boolean[] highlightedInComment;
+    private static boolean[] highlightedStale;
+    // multiline comment state at the start of every HIGHLIGHT_CHECKPOINT_INTERVAL-th row,
+    // only the first validCheckpoints are up to date
+    private static boolean[] commentCheckpoints;
+    private static int validCheckpoints;
+
+    // incremented by every edit, editedRows holds the row each of the recent versions edited
+    private static long highlightVersion;
+    private static final int[] editedRows = new int[HIGHLIGHT_EDIT_LOG];
+
+    private static Thread highlighter;
+    // set by the highlighter thread when lexing failed, rows are drawn plain until all
+    // highlights are dropped again, as when the file is opened
+    private static volatile RuntimeException highlightFailure;
+    // newest job for the highlighter thread, null once it took it
+    private static final AtomicReference<HighlightJob> highlightJob = new AtomicReference<>();
+    private static final LinkedBlockingQueue<HighlightResult> highlightResults =
+        new LinkedBlockingQueue<>();
+    private static HighlightJob lastHighlightJob;
+    private static long lastHighlightResultJob;
 
-    private static List<HIGHLIGHT> savedHighlight;
-    private static int savedHighlightLine;
+    // cols [xOffset, xOffset + COLUMNS) of the row being drawn covered by a search match
+    private static boolean[] visibleMatches = new boolean[0];
+    private static char[] searchBuffer = new char[256];
+    // a regex is matched on the rows drawn until visibleDeadline, so a slow one can't hold up
+    // the screen
+    private static long visibleDeadline;
+    private static final RowSequence visibleRow =
+        new RowSequence(() -> System.nanoTime() < visibleDeadline);
 
-    private static List<EditorAction> actionHistory;
-    private static List<EditorAction> redoActionHistory;
+    private static UndoHistory history;
+
+    // The screen as last drawn, a row of cells per screen row and the status bar last, where
+    // a cell is a char, the color it is drawn in and whether it is inverted. A frame is only
+    // written where its cells differ. A row's length is -1 when its content is unknown.
+    private static int[][] screenCells = new int[0][];
+    private static int[] screenLengths = new int[0];
+    // cells of the row being drawn
+    private static int[] rowCells = new int[0];
+    // rows set aside while the others scroll
+    private static int[][] spareCells = new int[0][];
+    // What each text row of the screen was drawn from: its file row, -1 if unknown, the
+    // highlightVersion then, its highlight, the xOffset and the search drawn. A row still drawn
+    // from the same is not drawn again.
+    private static int[] screenFileRows = new int[0];
+    private static long[] screenVersions = new long[0];
+    private static byte[][] screenHighlights = new byte[0][];
+    private static int[] screenXOffsets = new int[0];
+    private static Object[] screenSearches = new Object[0];
+    // whether the row drawn last is missing matches, the regex search ran out of time
+    private static boolean partialMatches;
+    private static int screenCursorRow, screenCursorCol;
+    // not final, the benchmarks draw frames into a channel of their own
+    private static TerminalOutput terminal =
+        new TerminalOutput(new FileOutputStream(FileDescriptor.out).getChannel());
+    // not final either, the benchmarks type keys of their own
+    private static TerminalInput keyboard =
+        new TerminalInput(new FileInputStream(FileDescriptor.in));
+    // text of the last PASTE read
+    private static String pastedText;
+    // the char being typed, reused so typing allocates no string
+    private static final CharBuffer typed = CharBuffer.allocate(1);
+    // yOffset of the screen as last drawn, -1 before the first frame
+    private static int screenYOffset = -1;
+    // when the last frame was drawn, and the keys read and frames written so far, which show
+    // how many frames the coalescing saves
+    private static long lastFrameNanos;
+    private static long keysRead;
+    private static long framesDrawn;
+
+    // scratch buffer rows are copied into for drawing, searching and highlighting
+    private static char[] lineBuffer = new char[256];
 
     private static String fileName;
 
     // if the file has been modified
     private static boolean dirty = false;
+    // number of edits made, a save leaves the file dirty when edits were made after its snapshot
+    private static long edits;
+
+    // log of the edits since the file was saved, null until the file has a name
+    private static Journal journal;
+    // undo history of the saved file, null until the file has a name or if it is read-only
+    private static UndoFile undoFile;
+
+    // the save running on a virtual thread, null when there is none
+    private static Thread saver;
+    private static final AtomicLong savedBytes = new AtomicLong();
+    private static final LinkedBlockingQueue<SaveResult> saveResults =
+        new LinkedBlockingQueue<>();
 
     public static void main(String[] args) throws IOException {
         if (args.length > 0) {
@@ -153,28 +3169,33 @@ public class Main {
         initEditor();
         editorOpen(fileName);
         initHighlight();
+        editorRecover();
 
         while (true) {
-            refreshScreen();
+            refreshScreenUntilKey();
             int key = readKey();
             handleKey(key);
         }
     }
 
     private static void initHighlight() {
-        if (content == null || content.isEmpty()) {
-            return;
-        }
-
-        highlightedContent = new ArrayList<>();
-        for (String line : content) {
-            List<HIGHLIGHT> highlightedLine =
-                new ArrayList<>(Collections.nCopies(line.length(), HIGHLIGHT.HL_NORMAL));
-            highlightedContent.add(highlightedLine);
-            rowInComment.add(false);
-        }
+        allocateHighlights();
+        commentCheckpoints = new boolean[16];
 
         editorUpdateHighlight();
+        highlighter = Thread.ofVirtual().name("highlighter").start(Main::runHighlighter);
+    }
+
+    private static void allocateHighlights() {
+        highlightedContent = new byte[highlightSlots()][];
+        highlightedRows = new int[highlightSlots()];
+        highlightedInComment = new boolean[highlightSlots()];
+        highlightedStale = new boolean[highlightSlots()];
+    }
+
+    // at least twice the screen height, so visible rows never share a slot
+    private static int highlightSlots() {
+        return Integer.highestOneBit(Math.max(ROWS, 16)) * 4;
     }
 
     private static void editorOpen(String file) {
@@ -186,16 +3207,61 @@ public class Main {
 
         Path path = Path.of(file);
         if (Files.exists(path)) {
-            try (Stream<String> stream = Files.lines(path)) {
-                content = stream.collect(Collectors.toList());
+            try {
+                document = Files.size(path) >= MAPPED_FILE_SIZE ?
+                    MappedDocument.open(path) : PieceTable.load(path);
                 dirty = false;
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
+        if (!document.isReadOnly()) {
+            // nothing is read until the history is undone past
+            undoFile = new UndoFile(path, false);
+            history.keep(undoFile);
+        }
+    }
+
+    // offers to replay the journal a crash left behind, and starts the journal of the file
+    private static void editorRecover() {
+        if (fileName == null || fileName.isEmpty() || document.isReadOnly()) {
+            return;
+        }
+        Path path = Path.of(fileName);
+        try {
+            ByteBuffer records = Journal.recover(path);
+            if (records != null && records.hasRemaining()) {
+                String answer = editorPrompt("Recover unsaved edits? (y/n): ", null);
+                if ("y".equalsIgnoreCase(answer)) {
+                    int applied = Journal.replay(records.duplicate(), document);
+                    if (applied < records.limit()) {
+                        // the log goes on after the edits that fit
+                        records = records.slice(0, applied);
+                        statusMessage = "Recovered the edits before a damaged one";
+                    }
+                    dirty = true;
+                    edits++;
+                    editorUpdateHighlight();
+                } else {
+                    records = null;
+                }
+            }
+            journal = Journal.open(path, records);
+        } catch (IOException | RuntimeException e) {
+            // a damaged journal must not keep the file from opening
+            statusMessage = "Can't open the journal! " + e.getMessage();
+        }
     }
 
     private static void editorSave() {
+        if (document.isReadOnly()) {
+            statusMessage = "File is read-only";
+            return;
+        }
+        if (saver != null) {
+            statusMessage = "Already saving";
+            return;
+        }
         if (fileName == null) {
             fileName = editorPrompt("Save as: ", null);
             if (fileName == null) {
@@ -203,25 +3269,139 @@ public class Main {
                 return;
             }
         }
+        // saved as a name of another type, the highlights made for the old one are dropped
+        EditorSyntax syntax = editorSyntax;
         editorSelectSyntax();
+        if (editorSyntax != syntax) {
+            editorUpdateHighlight();
+        }
 
+        // the saver thread writes a snapshot, editing goes on meanwhile
+        Document text = document.snapshot();
         Path path = Path.of(fileName);
+        long version = edits;
+        Journal log = journal;
+        long journalMark = log == null ? -1 : log.mark();
+        if (undoFile == null) {
+            // saved as, an undo file already there is for other contents
+            undoFile = new UndoFile(path, true);
+            history.keep(undoFile);
+        }
+        // the edits kept are copied now and written by the saver, after the text
+        UndoFile undo = undoFile;
+        UndoFile.Batch batch = history.persist();
+        savedBytes.set(0);
+        saver = Thread.ofVirtual().name("saver").start(() -> {
+            Exception error = null;
+            long hash = 0;
+            try {
+                writeFile(text, path, savedBytes);
+                if (log != null) {
+                    log.compact(journalMark);
+                }
+                hash = UndoFile.hash(text);
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            if (batch != null) {
+                undo.write(batch, error == null, hash);
+            }
+            saveResults.add(new SaveResult(version, batch, hash, error));
+        });
+        updateSaveStatus();
+    }
+
+    // shows the progress of the running save in the status bar, and its result once it is
+    // done, returns whether the status changed
+    private static boolean updateSaveStatus() {
+        if (saver == null) {
+            return false;
+        }
+        String status;
+        SaveResult result = saveResults.poll();
+        if (result == null) {
+            status = String.format("Saving... %d MB", savedBytes.get() >> 20);
+        } else {
+            saver = null;
+            if (result.undo() != null) {
+                undoFile.saved(result.undo(), result.error() == null, result.hash());
+            }
+            if (result.error() == null) {
+                status = "File saved!";
+                // edits made while saving are not in the file
+                dirty = edits != result.version();
+                if (journal == null) {
+                    // the file got its name
+                    try {
+                        journal = Journal.open(Path.of(fileName), null);
+                    } catch (IOException e) {
+                        status = "Can't open the journal! " + e.getMessage();
+                    }
+                }
+            } else {
+                status = "Can't save! " + result.error().getMessage();
+            }
+        }
+        boolean changed = !status.contentEquals(statusMessage);
+        statusMessage = status;
+        return changed;
+    }
+
+    // Writes text to a temporary file next to path, forces it to disk and renames it over path,
+    // so a crash while saving leaves either the old or the new file, never a part of one. The
+    // bytes written so far are added to written.
+    private static void writeFile(Document text, Path path, AtomicLong written)
+        throws IOException {
+        if (Files.exists(path)) {
+            // replace the file a link points to, not the link
+            path = path.toRealPath();
+        }
+        path = path.toAbsolutePath();
+        Path temp = path.resolveSibling(
+            "." + path.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
         try {
-            Files.deleteIfExists(path);
-            Files.createFile(path);
-            for (String line : content) {
-                Files.writeString(path, line + System.lineSeparator(), StandardOpenOption.APPEND);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                Writer writer = new ChannelWriter(channel, StandardCharsets.UTF_8,
+                    SAVE_BUFFER_SIZE, written);
+                text.writeTo(writer, System.lineSeparator());
+                writer.close();
+                channel.force(true);
             }
-            statusMessage = "File saved!";
-            dirty = false;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            if (Files.exists(path)) {
+                try {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(path));
+                } catch (UnsupportedOperationException e) {
+                    // not a POSIX file system, the new file keeps the default permissions
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    // Stops the journal and deletes it, called on quitting: either nothing is unsaved or the
+    // user chose to throw the unsaved edits away. Only a process that dies leaves it behind.
+    private static void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+            Files.deleteIfExists(journal.path());
+        } catch (IOException | InterruptedException e) {
+            // the journal is only replayed when it matches the file, leaving it is harmless
         }
     }
 
-    private static void editorFind() {
+    private static void editorFind(boolean regex) {
         int savedCx = cx, savedCy = cy;
-        String query = editorPrompt("Search (ESC to cancel): ", getEditFindConsumer());
+        regexSearch = regex;
+        String query = editorPrompt(regex ? "Regex search (ESC to cancel): " :
+            "Search (ESC to cancel): ", getEditFindConsumer());
         if (query == null) {
             // search is canceled, restore cursor position
             cx = savedCx;
@@ -232,15 +3412,10 @@ public class Main {
     private static BiConsumer<String, Integer> getEditFindConsumer() {
         BiConsumer<String, Integer> editFind = (query, key) -> {
 
-            if (savedHighlight != null) {
-                // restore previous highlighted line
-                highlightedContent.set(savedHighlightLine, savedHighlight);
-                savedHighlight = null;
-            }
-
             if (key == '\033' || key == '\r') {
                 lastMatchRow = -1;
                 direction = DIRECTION_FORWARD;
+                endSearch();
                 return;
             } else if (key == ARROW_UP || key == ARROW_LEFT) {
                 direction = DIRECTION_BACKWARD;
@@ -251,38 +3426,155 @@ public class Main {
                 direction = DIRECTION_FORWARD;
             }
 
-            int col;
-            int currentRow = lastMatchRow;
-            for (int i = 0; i < content.size(); i++) {
-                currentRow += direction;
-                if (currentRow < 0) {
-                    currentRow = content.size() - 1;
-                } else if (currentRow == content.size()) {
-                    currentRow = 0;
-                }
-                String line = content.get(currentRow);
-                col = line.indexOf(query);
-                if (col > -1) {
-                    lastMatchRow = currentRow;
-                    cx = col;
-                    cy = currentRow;
-
-                    List<HIGHLIGHT> highlightedLine = highlightedContent.get(currentRow);
-                    // save highlighted line
-                    savedHighlightLine = currentRow;
-                    savedHighlight = new ArrayList<>(highlightedLine);
-
-                    for (int j = col; j < col + query.length(); j++) {
-                        highlightedLine.set(j, HIGHLIGHT.HL_MATCH);
-                    }
-                    highlightedContent.set(currentRow, highlightedLine);
+            if (query.isEmpty()) {
+                endSearch();
+                return;
+            }
+            if (!regexSearch) {
+                searchPattern = new SearchPattern(query);
+            } else if (searchRegex == null || !searchRegex.pattern().equals(query)) {
+                try {
+                    searchRegex = Pattern.compile(query);
+                    searchError = null;
+                } catch (PatternSyntaxException e) {
+                    // shown until the regex typed compiles
+                    endSearch();
+                    searchError = e.getDescription();
+                    return;
+                }
+            }
+            Search search = searchMatches(query);
+            if (search != null) {
+                showMatch(search);
+            }
+        };
+
+        return editFind;
+    }
+
+    // moves the cursor to the match of search after the last one shown, or before it when
+    // searching backward, wrapping around the document
+    private static void showMatch(Search search) {
+        shownSearch = search;
+        long[] matches = search.matches();
+        if (matches.length == 0) {
+            return;
+        }
+        // matches are in document order, the next one is looked up around the last one
+        long last = lastMatchRow < 0 ? -1 : (long) lastMatchRow << 32 | lastMatchCol;
+        int index = Arrays.binarySearch(matches, last);
+        if (direction == DIRECTION_FORWARD) {
+            index = index >= 0 ? index + 1 : -index - 1;
+            if (index == matches.length) {
+                index = 0;
+            }
+        } else {
+            index = (index >= 0 ? index : -index - 1) - 1;
+            if (index < 0) {
+                index = matches.length - 1;
+            }
+        }
+        shownMatch = index;
+        lastMatchRow = (int) (matches[index] >>> 32);
+        lastMatchCol = (int) matches[index];
+        cx = lastMatchCol;
+        cy = lastMatchRow;
+    }
+
+    // Matches of query, as row << 32 | col, or null if they are being searched for on the common
+    // fork/join pool, updateSearch shows them once found. The matches of the queries typed
+    // before it in the prompt are kept, so a query a char longer only checks where the shorter
+    // one matched, and deleting that char finds its matches kept.
+    private static Search searchMatches(String query) {
+        if (searching != null) {
+            if (searchingQuery.equals(query)) {
+                return null;
+            }
+            searching.cancel(false);
+            searching = null;
+        }
+        while (!searches.isEmpty() && !query.startsWith(searches.getLast().query())) {
+            searches.removeLast();
+        }
+        if (!searches.isEmpty() && searches.getLast().query().equals(query)) {
+            return searches.getLast();
+        }
+
+        Search shorter = searches.isEmpty() ? null : searches.getLast();
+        // checking a match reads its row, searching the whole text again is quicker when the
+        // shorter query matched on a large part of the rows. A longer regex may match where a
+        // shorter one didn't.
+        if (regexSearch) {
+            searching = SearchTask.find(document.snapshot(), searchRegex, SEARCH_MATCHES_KEPT);
+        } else if (shorter != null && shorter.complete() &&
+            shorter.count() < document.lineCount() / NARROW_RATIO) {
+            searching = SearchTask.narrow(document.snapshot(), searchPattern, shorter.matches(),
+                SEARCH_MATCHES_KEPT);
+        } else {
+            searching = SearchTask.find(document.snapshot(), searchPattern, SEARCH_MATCHES_KEPT);
+        }
+        searchingQuery = query;
+        ForkJoinPool.commonPool().execute(searching);
+        try {
+            // a short wait saves drawing the screen twice when the search is quick
+            searching.quietlyJoin(SEARCH_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // shows the matches if the search is done
+        updateSearch();
+        return null;
+    }
 
-                    return;
-                }
-            }
-        };
+    // keeps the matches of the running search once it is done, and moves the cursor to the
+    // first, returns whether it was done
+    private static boolean updateSearch() {
+        if (searching == null || !searching.isDone()) {
+            return false;
+        }
+        SearchTask.Found found = searching.join();
+        searching = null;
+        Search search = new Search(searchingQuery, found.matches(), found.count());
+        searches.add(search);
+        showMatch(search);
+        return true;
+    }
 
-        return editFind;
+    private static void endSearch() {
+        if (searching != null) {
+            searching.cancel(false);
+            searching = null;
+        }
+        searches.clear();
+        searchPattern = null;
+        searchRegex = null;
+        searchError = null;
+        shownSearch = null;
+    }
+
+    // number of matches of the search shown in the find prompt
+    // drawn with every frame, so the text is kept until the error or the match changes
+    private static String searchStatus() {
+        if (searchError != null) {
+            if (searchError != statusSearchError) {
+                statusSearchError = searchError;
+                searchErrorStatus = " (" + searchError + ")";
+            }
+            return searchErrorStatus;
+        } else if (searchPattern == null && searchRegex == null) {
+            return "";
+        } else if (searching != null) {
+            return " (searching)";
+        } else if (shownSearch == null || shownSearch.count() == 0) {
+            return " (no matches)";
+        }
+        if (shownSearch != statusSearch || shownMatch != statusMatch) {
+            statusSearch = shownSearch;
+            statusMatch = shownMatch;
+            matchStatus = String.format(" (match %,d of %,d)", shownMatch + 1,
+                shownSearch.count());
+        }
+        return matchStatus;
     }
 
     private static String editorPrompt(String prompt, BiConsumer<String, Integer> callback) {
@@ -290,10 +3582,13 @@ public class Main {
 
         while (true) {
             statusMessage = prompt + input;
-            refreshScreen();
 
             try {
+                refreshScreenUntilKey();
                 int key = readKey();
+                if (key == RESIZE) {
+                    continue;
+                }
                 // TODO: BUG: when in search mode, need to press ESC twice to exit
                 if (key == '\033') {
                     statusMessage = "";
@@ -314,6 +3609,9 @@ public class Main {
                     }
                 } else if (key >= 32 && key < 128) {
                     input.append((char) key);
+                } else if (key == PASTE) {
+                    // a prompt takes one line
+                    input.append(pastedText.lines().findFirst().orElse(""));
                 }
                 if (callback != null) {
                     callback.accept(input.toString(), key);
@@ -350,145 +3648,370 @@ public class Main {
             .map(f -> f.substring(f.lastIndexOf(".")));
     }
 
+    // drops every highlight, used when the file is opened or its syntax changes
     private static void editorUpdateHighlight() {
-        for (int r = 0; r < content.size(); r++) {
-            String line = content.get(r);
-            List<HIGHLIGHT> highlightedLine =
-                new ArrayList<>(Collections.nCopies(line.length(), HIGHLIGHT.HL_NORMAL));
-            if (editorSyntax != null) {
-                // syntax highlight is enabled
-                boolean hasSeparatorBefore = true;
-                boolean inComment = r > 0 && rowInComment.get(r - 1);
-                int in_string = 0;
-                HIGHLIGHT prevHighlight = HIGHLIGHT.HL_NORMAL;
-
-                String singleLineCommentStart = editorSyntax.singleLineCommentStart;
-                String multilineCommentStart = editorSyntax.multilineCommentStart;
-                String multilineCommentEnd = editorSyntax.multilineCommentEnd;
-
-                int i = 0;
-                while (i < line.length()) {
-                    if (i > 0) {
-                        prevHighlight = highlightedLine.get(i - 1);
-                    }
+        highlightFailure = null;
+        Arrays.fill(highlightedRows, -1);
+        // row 0 never starts in a comment
+        validCheckpoints = 1;
+        highlightVersion++;
+        editedRows[(int) (highlightVersion % HIGHLIGHT_EDIT_LOG)] = 0;
+    }
 
-                    // single line comment highlight
-                    if (!singleLineCommentStart.isEmpty() && in_string == 0 && !inComment) {
-                        if (i + singleLineCommentStart.length() <= line.length() &&
-                            line.substring(i, i + singleLineCommentStart.length())
-                                .equals(singleLineCommentStart)) {
-                            for (int j = i; j < line.length(); j++) {
-                                highlightedLine.set(j, HIGHLIGHT.HL_COMMENT);
-                            }
-                            break;
+    // called after row was edited and rowsInserted rows (negative if deleted) were inserted right
+    // below it. The highlights from row down are kept, moved along with their rows, but stale.
+    private static void editorUpdateHighlight(int row, int rowsInserted) {
+        if (rowsInserted != 0) {
+            shiftHighlights(row, rowsInserted);
+        }
+        for (int i = 0; i < highlightedRows.length; i++) {
+            if (highlightedRows[i] >= row) {
+                highlightedStale[i] = true;
+            }
+        }
+        validCheckpoints = Math.min(validCheckpoints, row / HIGHLIGHT_CHECKPOINT_INTERVAL + 1);
+        highlightVersion++;
+        editedRows[(int) (highlightVersion % HIGHLIGHT_EDIT_LOG)] = row;
+    }
+
+    // moves the cached highlights of the rows below row by delta rows, dropping the ones that
+    // land on a slot already taken
+    private static void shiftHighlights(int row, int delta) {
+        byte[][] content = highlightedContent.clone();
+        int[] rows = highlightedRows.clone();
+        boolean[] inComment = highlightedInComment.clone();
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] > row) {
+                highlightedRows[i] = -1;
+            }
+        }
+        for (int i = 0; i < rows.length; i++) {
+            int moved = rows[i] + delta;
+            if (rows[i] > row && moved > row) {
+                int slot = moved & (highlightedRows.length - 1);
+                highlightedContent[slot] = content[i];
+                highlightedRows[slot] = moved;
+                highlightedInComment[slot] = inComment[i];
+            }
+        }
+    }
+
+    private static boolean isHighlighted(int row) {
+        int slot = row & (highlightedRows.length - 1);
+        return highlightedRows[slot] == row && !highlightedStale[slot];
+    }
+
+    // returns the highlight of a row to draw, which may be stale, longer or shorter than the row,
+    // or null if the row was not lexed yet
+    private static byte[] cachedHighlight(int row) {
+        int slot = row & (highlightedRows.length - 1);
+        return highlightedRows[slot] == row ? highlightedContent[slot] : null;
+    }
+
+    // hands the rows of [firstRow, lastRow] that are stale or missing to the highlighter thread
+    private static void requestHighlight(int firstRow, int lastRow) {
+        int from = -1, to = -1;
+        for (int row = firstRow; row <= lastRow; row++) {
+            if (!isHighlighted(row)) {
+                if (from == -1) {
+                    from = row;
+                }
+                to = row;
+            }
+        }
+        if (from == -1 || highlightFailure != null) {
+            return;
+        }
+        HighlightJob last = lastHighlightJob;
+        if (last != null && last.version() == highlightVersion && last.firstRow() == from &&
+            last.lastRow() == to) {
+            // already asked for
+            return;
+        }
+
+        // a job the highlighter never took is not read, its snapshot is released before the
+        // next is taken
+        HighlightJob skipped = highlightJob.getAndSet(null);
+        if (skipped != null) {
+            skipped.text().release();
+        }
+        boolean startKnown = from == 0 || isHighlighted(from - 1);
+        int slotAbove = (from - 1) & (highlightedRows.length - 1);
+        boolean startInComment = from > 0 && startKnown && highlightedInComment[slotAbove];
+        lastHighlightJob = new HighlightJob(last == null ? 1 : last.id() + 1, highlightVersion,
+            document.snapshot(), editorSyntax, from, to, startKnown, startInComment,
+            Arrays.copyOf(commentCheckpoints, validCheckpoints));
+        highlightJob.set(lastHighlightJob);
+        LockSupport.unpark(highlighter);
+    }
+
+    private static boolean highlightPending() {
+        return lastHighlightJob != null && lastHighlightJob.id() > lastHighlightResultJob;
+    }
+
+    // waits up to timeoutMillis for the highlighter thread and installs what it delivered,
+    // returns whether anything arrived
+    private static boolean awaitHighlight(long timeoutMillis) {
+        try {
+            HighlightResult result = highlightResults.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (result == null) {
+                return false;
+            }
+            do {
+                applyHighlight(result);
+                result = highlightResults.poll();
+            } while (result != null);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // rows and checkpoints from the first row edited since the job's snapshot on are left out,
+    // they may have changed or moved
+    private static void applyHighlight(HighlightResult result) {
+        lastHighlightResultJob = Math.max(lastHighlightResultJob, result.jobId());
+        int editedRow = firstRowEditedSince(result.version());
+        for (int i = 0; i < result.rows().length && result.firstRow() + i < editedRow; i++) {
+            int row = result.firstRow() + i;
+            int slot = row & (highlightedRows.length - 1);
+            highlightedContent[slot] = result.rows()[i];
+            highlightedRows[slot] = row;
+            highlightedInComment[slot] = result.endInComment()[i];
+            highlightedStale[slot] = false;
+        }
+
+        int checkpoints = Math.min(result.validCheckpoints(),
+            editedRow / HIGHLIGHT_CHECKPOINT_INTERVAL + 1);
+        if (checkpoints > validCheckpoints) {
+            if (commentCheckpoints.length < checkpoints) {
+                commentCheckpoints = Arrays.copyOf(commentCheckpoints, checkpoints * 2);
+            }
+            System.arraycopy(result.checkpoints(), validCheckpoints, commentCheckpoints,
+                validCheckpoints, checkpoints - validCheckpoints);
+            validCheckpoints = checkpoints;
+        }
+    }
+
+    private static int firstRowEditedSince(long version) {
+        if (highlightVersion - version >= HIGHLIGHT_EDIT_LOG) {
+            return 0;
+        }
+        int row = Integer.MAX_VALUE;
+        for (long v = version + 1; v <= highlightVersion; v++) {
+            row = Math.min(row, editedRows[(int) (v % HIGHLIGHT_EDIT_LOG)]);
+        }
+        return row;
+    }
+
+    // body of the highlighter thread, it always works on the newest job
+    private static void runHighlighter() {
+        while (true) {
+            HighlightJob job = highlightJob.getAndSet(null);
+            if (job == null) {
+                LockSupport.park();
+            } else {
+                HighlightResult result;
+                try {
+                    result = runHighlightJob(job);
+                } catch (RuntimeException e) {
+                    // a mapped file that can't be read any more, for one. The job is answered
+                    // as if it was given up, so nothing waits for it, and no more are asked for.
+                    highlightFailure = e;
+                    result = new HighlightResult(job.id(), job.version(), job.firstRow(),
+                        new byte[0][], new boolean[0], job.checkpoints(),
+                        job.checkpoints().length);
+                }
+                // before the result, the next key may take back what the snapshot kept
+                job.text().release();
+                highlightResults.add(result);
+            }
+        }
+    }
+
+    private static HighlightResult runHighlightJob(HighlightJob job) {
+        Document text = job.text();
+        int firstRow = job.firstRow();
+        boolean[] checkpoints = job.checkpoints();
+        int validCount = checkpoints.length;
+
+        int row = firstRow;
+        boolean inComment = job.startInComment();
+        if (!job.startKnown()) {
+            int checkpoint = Math.min(firstRow / HIGHLIGHT_CHECKPOINT_INTERVAL, validCount - 1);
+            row = checkpoint * HIGHLIGHT_CHECKPOINT_INTERVAL;
+            inComment = checkpoints[checkpoint];
+        }
+
+        char[] line = new char[256];
+        byte[] scratch = new byte[256];
+        byte[][] rows = new byte[job.lastRow() - firstRow + 1][];
+        boolean[] endInComment = new boolean[rows.length];
+        for (; row <= job.lastRow(); row++) {
+            if (row % HIGHLIGHT_CHECKPOINT_INTERVAL == 0 &&
+                row / HIGHLIGHT_CHECKPOINT_INTERVAL == validCount) {
+                if (validCount == checkpoints.length) {
+                    checkpoints = Arrays.copyOf(checkpoints, validCount * 2);
+                }
+                checkpoints[validCount++] = inComment;
+            }
+            if (row < firstRow && row % 1024 == 0 && highlightJob.get() != null) {
+                // a newer job is waiting, only the checkpoints found so far are delivered
+                return new HighlightResult(job.id(), job.version(), firstRow, new byte[0][],
+                    new boolean[0], checkpoints, validCount);
+            }
+
+            int length = text.lineLength(row);
+            if (line.length < length) {
+                line = new char[Math.max(length, line.length * 2)];
+            }
+            text.getChars(row, 0, length, line, 0);
+            byte[] highlightedLine;
+            if (row < firstRow) {
+                // only the comment state is needed
+                if (scratch.length < length) {
+                    scratch = new byte[Math.max(length, scratch.length * 2)];
+                }
+                highlightedLine = scratch;
+            } else {
+                highlightedLine = new byte[length];
+                rows[row - firstRow] = highlightedLine;
+            }
+            inComment = highlightLine(job.syntax(), line, length, inComment, highlightedLine);
+            if (row >= firstRow) {
+                endInComment[row - firstRow] = inComment;
+            }
+        }
+        return new HighlightResult(job.id(), job.version(), firstRow, rows, endInComment,
+            checkpoints, validCount);
+    }
+
+    // highlights the first length chars of line into highlightedLine, returns the multiline
+    // comment state at the end of the line. Runs on the highlighter thread.
+    private static boolean highlightLine(EditorSyntax syntax, char[] line, int length,
+                                         boolean inComment, byte[] highlightedLine) {
+        Arrays.fill(highlightedLine, 0, length, HIGHLIGHT.HL_NORMAL.id);
+        if (syntax != null) {
+            // syntax highlight is enabled
+            boolean hasSeparatorBefore = true;
+            int in_string = 0;
+            byte prevHighlight = HIGHLIGHT.HL_NORMAL.id;
+            SyntaxMatcher matcher = syntax.matcher;
+            boolean singleLineComments = matcher.hasSingleLineComments();
+            boolean multilineComments = matcher.hasMultilineComments();
+
+            int i = 0;
+            while (i < length) {
+                if (i > 0) {
+                    prevHighlight = highlightedLine[i - 1];
+                }
+
+                // single line comment highlight
+                if (singleLineComments && in_string == 0 && !inComment) {
+                    if (matcher.singleLineCommentAt(line, length, i)) {
+                        for (int j = i; j < length; j++) {
+                            highlightedLine[j] = HIGHLIGHT.HL_COMMENT.id;
                         }
+                        break;
                     }
+                }
 
-                    // multiline comment highlight
-                    if (!multilineCommentStart.isEmpty() &&
-                        !multilineCommentEnd.isEmpty() && in_string == 0) {
-                        if (inComment) {
-                            highlightedLine.set(i, HIGHLIGHT.HL_MLCOMMENT);
-                            if (i + multilineCommentEnd.length() <= line.length() &&
-                                line.substring(i, i + multilineCommentEnd.length())
-                                    .equals(multilineCommentEnd)) {
-                                for (int j = i; j < i + multilineCommentEnd.length(); j++) {
-                                    highlightedLine.set(j, HIGHLIGHT.HL_MLCOMMENT);
-                                }
-                                i += multilineCommentEnd.length();
-                                inComment = false;
-                                hasSeparatorBefore = true;
-                                continue;
-                            } else {
-                                i++;
-                                continue;
+                // multiline comment highlight
+                if (multilineComments && in_string == 0) {
+                    if (inComment) {
+                        highlightedLine[i] = HIGHLIGHT.HL_MLCOMMENT.id;
+                        int end = matcher.multilineCommentEndAt(line, length, i);
+                        if (end > 0) {
+                            for (int j = i; j < i + end; j++) {
+                                highlightedLine[j] = HIGHLIGHT.HL_MLCOMMENT.id;
                             }
-                        } else if (i + multilineCommentStart.length() <= line.length() &&
-                            line.substring(i, i + multilineCommentStart.length())
-                                .equals(multilineCommentStart)) {
-                            for (int j = i; j < i + multilineCommentStart.length(); j++) {
-                                highlightedLine.set(j, HIGHLIGHT.HL_MLCOMMENT);
+                            i += end;
+                            inComment = false;
+                            hasSeparatorBefore = true;
+                            continue;
+                        } else {
+                            i++;
+                            continue;
+                        }
+                    } else {
+                        int start = matcher.multilineCommentStartAt(line, length, i);
+                        if (start > 0) {
+                            for (int j = i; j < i + start; j++) {
+                                highlightedLine[j] = HIGHLIGHT.HL_MLCOMMENT.id;
                             }
                             inComment = true;
-                            i += multilineCommentStart.length();
+                            i += start;
                             continue;
                         }
                     }
+                }
 
-                    if ((editorSyntax.hl_flags & HL_HIGHLIGHT_STRING) != 0) {
-                        // string highlight is enabled
-                        if (in_string > 0) {
-                            highlightedLine.set(i, HIGHLIGHT.HL_STRING);
-                            if (line.charAt(i) == '\\' && i + 1 < line.length()) {
-                                highlightedLine.set(i + 1, HIGHLIGHT.HL_STRING);
-                                i += 2;
-                                continue;
-                            }
-
-                            if (line.charAt(i) == in_string) {
-                                in_string = 0;
-                            }
-                            hasSeparatorBefore = false;
-                            i++;
+                if ((syntax.hl_flags & HL_HIGHLIGHT_STRING) != 0) {
+                    // string highlight is enabled
+                    if (in_string > 0) {
+                        highlightedLine[i] = HIGHLIGHT.HL_STRING.id;
+                        if (line[i] == '\\' && i + 1 < length) {
+                            highlightedLine[i + 1] = HIGHLIGHT.HL_STRING.id;
+                            i += 2;
                             continue;
-                        } else {
-                            if (line.charAt(i) == '"' || line.charAt(i) == '\'') {
-                                in_string = line.charAt(i);
-                                highlightedLine.set(i, HIGHLIGHT.HL_STRING);
-                                i++;
-                                continue;
-                            }
                         }
-                    }
 
-                    if ((editorSyntax.hl_flags & HL_HIGHLIGHT_NUMBERS) != 0) {
-                        // number highlight is enabled
-                        if (Character.isDigit(line.charAt(i)) &&
-                            (hasSeparatorBefore || prevHighlight == HIGHLIGHT.HL_NUMBER) ||
-                            (line.charAt(i) == '.' && prevHighlight == HIGHLIGHT.HL_NUMBER)) {
-                            highlightedLine.set(i, HIGHLIGHT.HL_NUMBER);
-                            hasSeparatorBefore = false;
+                        if (line[i] == in_string) {
+                            in_string = 0;
+                        }
+                        hasSeparatorBefore = false;
+                        i++;
+                        continue;
+                    } else {
+                        if (line[i] == '"' || line[i] == '\'') {
+                            in_string = line[i];
+                            highlightedLine[i] = HIGHLIGHT.HL_STRING.id;
                             i++;
                             continue;
                         }
                     }
+                }
 
-                    // keyword highlight
-                    if (hasSeparatorBefore) {
-                        boolean seenKeyword = false;
-                        for (int j = 0; j < editorSyntax.keywords.length; j++) {
-                            String keyword = editorSyntax.keywords[j];
-                            if (i + keyword.length() <= line.length() &&
-                                line.substring(i, i + keyword.length())
-                                    .equals(keyword) &&
-                                (i + keyword.length() == line.length() ||
-                                    isSeparator(line.charAt(i + keyword.length())))) {
-                                for (int k = i; k < i + keyword.length(); k++) {
-                                    highlightedLine.set(k, HIGHLIGHT.HL_KEYWORD);
-                                }
-                                i += keyword.length();
-                                seenKeyword = true;
-                                break;
-                            }
-                        }
-                        if (seenKeyword) {
-                            hasSeparatorBefore = false;
-                            continue;
-                        }
+                if ((syntax.hl_flags & HL_HIGHLIGHT_NUMBERS) != 0) {
+                    // number highlight is enabled
+                    if (Character.isDigit(line[i]) &&
+                        (hasSeparatorBefore || prevHighlight == HIGHLIGHT.HL_NUMBER.id) ||
+                        (line[i] == '.' && prevHighlight == HIGHLIGHT.HL_NUMBER.id)) {
+                        highlightedLine[i] = HIGHLIGHT.HL_NUMBER.id;
+                        hasSeparatorBefore = false;
+                        i++;
+                        continue;
                     }
+                }
 
-                    hasSeparatorBefore = isSeparator(line.charAt(i));
-                    i++;
+                // keyword highlight
+                if (hasSeparatorBefore) {
+                    int keyword = matcher.keywordAt(line, length, i);
+                    if (keyword > 0) {
+                        Arrays.fill(highlightedLine, i, i + keyword, HIGHLIGHT.HL_KEYWORD.id);
+                        i += keyword;
+                        hasSeparatorBefore = false;
+                        continue;
+                    }
                 }
 
-                rowInComment.set(r, inComment);
+                hasSeparatorBefore = SyntaxMatcher.isSeparator(line[i]);
+                i++;
             }
-            highlightedContent.set(r, highlightedLine);
+
         }
+        return inComment;
     }
 
-    private static boolean isSeparator(int key) {
-        return SEPARATORS.indexOf(key) != -1;
+    // copies a row into lineBuffer and returns its length
+    private static int readLine(int row) {
+        int length = document.lineLength(row);
+        if (lineBuffer.length < length) {
+            lineBuffer = new char[Math.max(length, lineBuffer.length * 2)];
+        }
+        document.getChars(row, 0, length, lineBuffer, 0);
+        return length;
     }
 
     private static int editorSyntaxToColor(HIGHLIGHT highlight) {
@@ -509,77 +4032,65 @@ public class Main {
         }
     }
 
-    private static void insertChar(int c, boolean addToActionHistory, boolean isUserAction) {
-        if (cy == content.size()) {
-            content.add("");
-            highlightedContent.add(new ArrayList<>());
+    private static void insertChar(int c) {
+        if (cy == document.lineCount()) {
+            insertText(cy, 0, "\n");
+            history.record(UndoHistory.INSERT, cy, 0, "\n", cy, cx, cy, 0);
         }
         int at = cx;
-        String row = content.get(cy);
-        if (at < 0 || at > row.length()) {
-            at = row.length();
+        int rowLength = document.lineLength(cy);
+        if (at < 0 || at > rowLength) {
+            at = rowLength;
         }
-        StringBuilder builder = new StringBuilder(row);
-        builder.insert(at, (char) c);
-        content.set(cy, builder.toString());
+        typed.put(0, (char) c);
+        insertText(cy, at, typed);
+        editorUpdateHighlight(cy, 0);
 
         cx++;
         dirty = true;
+        edits++;
+        history.record(UndoHistory.INSERT, cy, at, typed, cy, cx - 1, cy, cx);
+    }
 
-        if (addToActionHistory) {
-            EditorAction action = new EditorAction(EditorAction.ACTION.INSERT_CHAR, cx, cy, c);
-            addEditorAction(action);
+    // every change to the document goes through insertText and deleteText, so it is journaled
+    private static void insertText(int line, int col, CharSequence text) {
+        document.insert(line, col, text);
+        if (journal != null) {
+            journal.insert(line, col, text);
         }
+    }
 
-        if (isUserAction) {
-            // user action clears redo history. Actions from undo will remain.
-            redoActionHistory.clear();
+    private static void deleteText(int line, int col, int length) {
+        document.delete(line, col, length);
+        if (journal != null) {
+            journal.delete(line, col, length);
         }
     }
 
-    private static void insertRow(boolean addToActionHistory, boolean isUserAction) {
+    private static void insertRow() {
+        int line = cy;
+        int col = cx;
         if (cx == 0) {
-            content.add(cy, "");
-            highlightedContent.add(cy, new ArrayList<>());
-            rowInComment.add(cy, false);
-        } else if (cx == content.get(cy).length()) {
-            content.add(cy + 1, "");
-            highlightedContent.add(cy + 1, new ArrayList<>());
-            if(rowInComment.size() < (cy + 1)){
-                rowInComment.add(false);
-            }
-            rowInComment.add(cy + 1, false);
-            cx = 0;
+            insertText(cy, 0, "\n");
         } else {
-            String line = content.get(cy);
-            content.add(cy + 1, line.substring(cx));
-            highlightedContent.add(cy + 1, new ArrayList<>());
-            if(rowInComment.size() < (cy + 1)){
-                rowInComment.add(false);
-            }
-            rowInComment.add(cy + 1, false);
-            content.set(cy, line.substring(0, cx));
+            // splits the row at the cursor, at the end of the row this adds an empty row
+            insertText(cy, cx, "\n");
             cx = 0;
         }
+        editorUpdateHighlight(cy, 1);
 
         cy++;
         dirty = true;
-
-        if (addToActionHistory) {
-            EditorAction action =
-                new EditorAction(EditorAction.ACTION.INSERT_ROW, cx, cy, 0);
-            addEditorAction(action);
-        }
-
-        if (isUserAction) {
-            // user action clears redo history. Actions from undo will remain.
-            redoActionHistory.clear();
-        }
+        edits++;
+        history.record(UndoHistory.INSERT, line, col, "\n", line, col, cy, cx);
+        // a row typed is undone at once
+        history.seal();
     }
 
-    // deletes the char to the left of cursor
-    private static void deleteChar(boolean addToActionHistory, boolean isUserAction) {
-        if (cy == content.size()) {
+    // Deletes the char to the left of the cursor. A delete key is a backspace after moving
+    // right, kind tells which it was and before where the cursor was before.
+    private static void deleteChar(int kind, int beforeLine, int beforeCol) {
+        if (cy == document.lineCount()) {
             return;
         }
         if (cx == 0 && cy == 0) {
@@ -588,98 +4099,139 @@ public class Main {
 
         if (cx > 0) {
             int at = cx - 1;
-            String line = content.get(cy);
-            if (at < 0 || at >= line.length()) {
+            if (at < 0 || at >= document.lineLength(cy)) {
                 return;
             }
-            int key = line.charAt(at);
-            line = line.substring(0, at) + line.substring(at + 1);
-            content.set(cy, line);
+            typed.put(0, document.charAt(cy, at));
+            deleteText(cy, at, 1);
+            editorUpdateHighlight(cy, 0);
             cx--;
-            dirty = true;
-            if (addToActionHistory) {
-                EditorAction action =
-                    new EditorAction(EditorAction.ACTION.DELETE_CHAR, cx, cy, key);
-                addEditorAction(action);
-            }
+            history.record(kind, cy, cx, typed, beforeLine, beforeCol, cy, cx);
         } else {
-            String line = content.get(cy);
-            deleteRow(cy);
+            // joins the row with the previous one by deleting the line break between them
             cy--;
-            cx = content.get(cy).length();
-            content.set(cy, content.get(cy) + line);
-            dirty = true;
-            if (addToActionHistory) {
-                EditorAction action =
-                    new EditorAction(EditorAction.ACTION.DELETE_ROW, cx, cy, 0);
-                addEditorAction(action);
-            }
-        }
-
-        if (isUserAction) {
-            // user action clears redo history. Actions from undo will remain.
-            redoActionHistory.clear();
+            cx = document.lineLength(cy);
+            deleteText(cy, cx, 1);
+            editorUpdateHighlight(cy, -1);
+            history.record(kind, cy, cx, "\n", beforeLine, beforeCol, cy, cx);
         }
+        dirty = true;
+        edits++;
     }
 
-    private static void deleteRow(int at) {
-        if (at < 0 || at >= content.size()) {
+    // Inserts text at the cursor with one edit of the document, recorded as one edit of its
+    // own, and moves the cursor after it. Line breaks in it may be \r, \r\n or \n.
+    private static void insertPaste(String text) {
+        text = text.replace("\r\n", "\n").replace('\r', '\n');
+        if (text.isEmpty()) {
             return;
         }
+        history.seal();
+        if (cy == document.lineCount()) {
+            insertText(cy, 0, "\n");
+            history.record(UndoHistory.INSERT, cy, 0, "\n", cy, cx, cy, 0);
+            history.seal();
+        }
+        int line = cy;
+        int col = cx;
+        int at = Math.min(Math.max(cx, 0), document.lineLength(cy));
+        insertText(cy, at, text);
+        int rowsInserted = lineBreaks(text);
+        editorUpdateHighlight(cy, rowsInserted);
 
-        content.remove(at);
+        int lastBreak = text.lastIndexOf('\n');
+        cx = lastBreak < 0 ? at + text.length() : text.length() - lastBreak - 1;
+        cy += rowsInserted;
         dirty = true;
+        edits++;
+        history.record(UndoHistory.INSERT, line, at, text, line, col, cy, cx);
+        history.seal();
     }
 
-    private static void addEditorAction(EditorAction action) {
-        actionHistory.add(action);
-        if (actionHistory.size() > MAX_ACTION_HISTORY) {
-            actionHistory.removeFirst();
+    private static int lineBreaks(String text) {
+        int count = 0;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+            count++;
         }
+        return count;
     }
 
+    // a group of keys is undone with one edit of the document, the edits in the undo file are
+    // undone once the ones in memory are
     private static void undoAction() {
-        if (actionHistory.isEmpty()) {
+        long edit = history.undo();
+        if (edit >= 0) {
+            applyEdit(history.kind(edit) != UndoHistory.INSERT, history.line(edit),
+                history.col(edit), history.text(edit));
+            cy = history.cursorLine(edit, true);
+            cx = history.cursorCol(edit, true);
             return;
         }
-
-        EditorAction editorAction = actionHistory.removeLast();
-        cx = editorAction.x;
-        cy = editorAction.y;
-        switch (editorAction.action) {
-            case EditorAction.ACTION.INSERT_CHAR -> deleteChar(false, false);
-            case EditorAction.ACTION.INSERT_ROW -> deleteChar(false, false);
-            case EditorAction.ACTION.DELETE_CHAR -> insertChar(editorAction.key, false, false);
-            case EditorAction.ACTION.DELETE_ROW -> insertRow(false, false);
+        if (undoFile != null && saver != null) {
+            // the undo file is written by the running save, undone once it is done
+            try {
+                saver.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            updateSaveStatus();
+        }
+        edit = undoFile == null ? -1 : undoFile.undo(document);
+        if (edit >= 0) {
+            applyEdit(undoFile.kind(edit) != UndoHistory.INSERT, undoFile.line(edit),
+                undoFile.col(edit), undoFile.text(edit));
+            cy = undoFile.cursorLine(edit, true);
+            cx = undoFile.cursorCol(edit, true);
+        } else if (undoFile != null && undoFile.stale()) {
+            statusMessage = "The file changed since its undo history was saved";
         }
-        editorAction.x = cx;
-        editorAction.y = cy;
-        redoActionHistory.add(editorAction);
-
-        editorUpdateHighlight();
     }
 
+    // the edits undone from the undo file are older than the ones in memory, so come first
     private static void redoAction() {
-        if (redoActionHistory.isEmpty()) {
+        long edit = undoFile == null ? -1 : undoFile.redo();
+        if (edit >= 0) {
+            applyEdit(undoFile.kind(edit) == UndoHistory.INSERT, undoFile.line(edit),
+                undoFile.col(edit), undoFile.text(edit));
+            cy = undoFile.cursorLine(edit, false);
+            cx = undoFile.cursorCol(edit, false);
             return;
         }
-
-        EditorAction editorAction = redoActionHistory.removeLast();
-        cx = editorAction.x;
-        cy = editorAction.y;
-        switch (editorAction.action) {
-            case EditorAction.ACTION.INSERT_CHAR -> insertChar(editorAction.key, true, false);
-            case EditorAction.ACTION.INSERT_ROW -> insertRow(true, false);
-            case EditorAction.ACTION.DELETE_CHAR -> deleteChar(true, false);
-            case EditorAction.ACTION.DELETE_ROW -> deleteChar(true, false);
+        edit = history.redo();
+        if (edit < 0) {
+            return;
         }
+        applyEdit(history.kind(edit) == UndoHistory.INSERT, history.line(edit),
+            history.col(edit), history.text(edit));
+        cy = history.cursorLine(edit, false);
+        cx = history.cursorCol(edit, false);
+    }
 
-        editorUpdateHighlight();
+    // inserts or deletes the text of an edit
+    private static void applyEdit(boolean insert, int line, int col, String text) {
+        if (insert) {
+            insertText(line, col, text);
+            editorUpdateHighlight(line, lineBreaks(text));
+        } else {
+            deleteText(line, col, text.length());
+            editorUpdateHighlight(line, -lineBreaks(text));
+        }
+        dirty = true;
+        edits++;
     }
 
     private static void handleKey(int key) {
         // ctrl-q to exit
         if (key == ctrl_key('q')) {
+            if (saver != null) {
+                // the running save decides whether there are unsaved changes
+                try {
+                    saver.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                updateSaveStatus();
+            }
             if (dirty && quitTimes > 0) {
                 statusMessage =
                     String.format("File has unsaved changes. Press Ctrl-Q %d times to quit.",
@@ -687,20 +4239,23 @@ public class Main {
                 quitTimes--;
                 return;
             }
+            closeJournal();
             disableRawMode();
             clearScreen();
             System.exit(0);
         } else if (key == ctrl_key('s')) {
             editorSave();
-            editorUpdateHighlight();
             return;
         } else if (key == ctrl_key('f')) {
-            editorFind();
+            editorFind(false);
+        } else if (key == ctrl_key('r')) {
+            editorFind(true);
         } else if (key == ctrl_key('z')) {
             undoAction();
         } else if (key == ctrl_key('y')) {
             redoAction();
-        } else if (List.of(ARROW_UP, ARROW_DOWN, ARROW_LEFT, ARROW_RIGHT).contains(key)) {
+        } else if (key == ARROW_UP || key == ARROW_DOWN || key == ARROW_LEFT ||
+            key == ARROW_RIGHT) {
             moveCursor(key);
         } else if (key == PAGE_UP || key == PAGE_DOWN) {
             // position the cursor to the top/or bottom of window
@@ -713,32 +4268,37 @@ public class Main {
             for (int i = 0; i < ROWS; i++) {
                 moveCursor(key == PAGE_UP ? ARROW_UP : ARROW_DOWN);
             }
+        } else if (key == RESIZE) {
+            // the next frame is drawn at the new size
         } else if (key == HOME_KEY) {
             cx = 0;
         } else if (key == END_KEY) {
-            cx = content.get(cy).length();
+            cx = document.lineLength(cy);
+        } else if (document.isReadOnly()) {
+            // editing keys do nothing
         } else if (key == DELETE_KEY) {
+            int line = cy;
+            int col = cx;
             moveCursor(ARROW_RIGHT);
-            deleteChar(true, true);
-            editorUpdateHighlight();
+            deleteChar(cy != line || cx != col ? UndoHistory.DELETE_FORWARD :
+                UndoHistory.DELETE_BACKWARD, line, col);
         } else if (key == '\r') { // enter key
-            insertRow(true, true);
-            editorUpdateHighlight();
+            insertRow();
         } else if (key == BACKSPACE) {
-            deleteChar(true, true);
-            editorUpdateHighlight();
+            deleteChar(UndoHistory.DELETE_BACKWARD, cy, cx);
         } else if (key == '\033') { // escape key
             // nothing
+        } else if (key == PASTE) {
+            insertPaste(pastedText);
         } else {
-            insertChar(key, true, true);
-            editorUpdateHighlight();
+            insertChar(key);
         }
 
         quitTimes = QUIT_TIMES;
 
         // reposition cursor to end of line if it was out of range
-        if (cy < content.size() && cx > content.get(cy).length()) {
-            cx = content.get(cy).length();
+        if (cy < document.lineCount() && cx > document.lineLength(cy)) {
+            cx = document.lineLength(cy);
         }
 
         buildStatusMessage();
@@ -751,7 +4311,7 @@ public class Main {
                 cy--;
             }
         } else if (key == ARROW_DOWN) {
-            if (cy < content.size()) {
+            if (cy < document.lineCount()) {
                 cy++;
             }
         } else if (key == ARROW_LEFT) {
@@ -760,13 +4320,13 @@ public class Main {
             } else if (cy > 0) {
                 // arrow left at the beginning of line goes to end of previous line
                 cy--;
-                cx = content.get(cy).length();
+                cx = document.lineLength(cy);
             }
         } else if (key == ARROW_RIGHT) {
-            if (cy < content.size() &&
-                cx < content.get(cy).length()) { // cannot scroll pass end of line
+            if (cy < document.lineCount() &&
+                cx < document.lineLength(cy)) { // cannot scroll pass end of line
                 cx++;
-            } else if (cy < content.size()) {
+            } else if (cy < document.lineCount()) {
                 // arrow right at the end of line goes to beginning of next line
                 cy++;
                 cx = 0;
@@ -779,7 +4339,8 @@ public class Main {
     }
 
     private static int readKey() throws IOException {
-        int key = System.in.read();
+        int key = keyboard.read();
+        keysRead++;
         // arrow key: \033[A or \033[B or \033[C or \033[D
         // page key: \033[5~ and \033[6~
         // delete key: \033[3~
@@ -789,10 +4350,10 @@ public class Main {
             return key;
         }
 
-        int nextKey = System.in.read();
+        int nextKey = keyboard.read();
 
         if (nextKey == '[') {
-            int thirdKey = System.in.read();
+            int thirdKey = keyboard.read();
             switch (thirdKey) {
                 case 'A':
                     return ARROW_UP;
@@ -807,23 +4368,49 @@ public class Main {
                 case 'F':
                     return END_KEY;
                 case '0', '1', '2', '3', '4', '5', '6', '7', '8', '9':
-                    int forthKey = System.in.read();
+                    int number = thirdKey - '0';
+                    int forthKey = keyboard.read();
+                    while (forthKey >= '0' && forthKey <= '9') {
+                        number = number * 10 + forthKey - '0';
+                        forthKey = keyboard.read();
+                    }
+                    if (forthKey == ';') {
+                        int second = 0;
+                        forthKey = keyboard.read();
+                        while (forthKey >= '0' && forthKey <= '9') {
+                            second = second * 10 + forthKey - '0';
+                            forthKey = keyboard.read();
+                        }
+                        if (forthKey == 'R') {
+                            // the answer to REPORT_SIZE, if one was asked for and the size makes
+                            // sense: a row of text and the status bar, no more than 999 each way
+                            if (sizeQueries.getAndUpdate(n -> Math.max(n - 1, 0)) > 0 &&
+                                number >= 2 && number <= 999 && second >= 1 && second <= 999) {
+                                resizeScreen(number, second);
+                            }
+                            return RESIZE;
+                        }
+                    }
                     if (forthKey != '~') {
                         return forthKey;
                     }
-                    switch (thirdKey) {
-                        case '1':
-                        case '7':
+                    switch (number) {
+                        case 1:
+                        case 7:
                             return HOME_KEY;
-                        case '3':
+                        case 3:
                             return DELETE_KEY;
-                        case '4':
-                        case '8':
+                        case 4:
+                        case 8:
                             return END_KEY;
-                        case '5':
+                        case 5:
                             return PAGE_UP;
-                        case '6':
+                        case 6:
                             return PAGE_DOWN;
+                        case 200:
+                            // bracketed paste: the text comes before \033[201~
+                            pastedText = keyboard.readUntil(PASTE_END);
+                            return PASTE;
                         default:
                             return thirdKey;
                     }
@@ -831,7 +4418,7 @@ public class Main {
                     return thirdKey;
             }
         } else if (nextKey == 'O') {
-            int thirdKey = System.in.read();
+            int thirdKey = keyboard.read();
             switch (thirdKey) {
                 case 'H':
                     return HOME_KEY;
@@ -846,14 +4433,15 @@ public class Main {
     }
 
     private static void clearScreen() {
-        System.out.print("\033[2J"); // clears entire screen
-        System.out.print("\033[H");  // moves cursor to row 1 column 1 (top left)
+        terminal.append(CLEAR_SCREEN);
+        writeToTerminal(CURSOR_HOME);
     }
 
     private static void initEditor() {
         int[] size = getWindowSize();
         ROWS = size[0] - 1;
         COLUMNS = size[1];
+        watchWindowSize();
 
         cx = 0;
         cy = 0;
@@ -861,96 +4449,381 @@ public class Main {
         yOffset = 0;
         editorSyntax = null;
 
-        content = new ArrayList<>();
-        highlightedContent = new ArrayList<>();
-        rowInComment = new ArrayList<>();
-        actionHistory = new LinkedList<>();
-        redoActionHistory = new LinkedList<>();
+        document = new PieceTable();
+        history = new UndoHistory(UNDO_EDITS, UNDO_CHARS);
 
         buildStatusMessage();
     }
 
+    // called after every key, so the text is appended to statusText, which allocates nothing,
+    // and only when something it shows changed
     private static void buildStatusMessage() {
-        statusMessage = String.format("Editor - v0.0.1. cx: %d, cy: %d", cx, cy);
+        int flags = (dirty ? 1 : 0) | (document.isReadOnly() ? 2 : 0) |
+            (journal != null && journal.failed() ? 4 : 0) |
+            (undoFile != null && undoFile.failed() ? 8 : 0) | (highlightFailure != null ? 16 : 0);
+        statusMessage = statusText;
+        if (cx == statusCx && cy == statusCy && flags == statusFlags &&
+            fileName == statusFileName && editorSyntax == statusSyntax) {
+            return;
+        }
+        statusCx = cx;
+        statusCy = cy;
+        statusFlags = flags;
+        statusFileName = fileName;
+        statusSyntax = editorSyntax;
+        statusText.setLength(0);
+        statusText.append("Editor - v0.0.1. cx: ").append(cx).append(", cy: ").append(cy);
         if (fileName != null) {
-            statusMessage += " " + fileName;
+            statusText.append(' ').append(fileName);
         }
         if (editorSyntax == null) {
-            statusMessage += " no ft";
+            statusText.append(" no ft");
         } else {
-            statusMessage += " " + editorSyntax.fileType;
+            statusText.append(' ').append(editorSyntax.fileType);
         }
         if (dirty) {
-            statusMessage += " modified";
+            statusText.append(" modified");
+        }
+        if (document.isReadOnly()) {
+            statusText.append(" read-only");
+        }
+        if (journal != null && journal.failed()) {
+            statusText.append(" no journal");
+        }
+        if (undoFile != null && undoFile.failed()) {
+            statusText.append(" no undo file");
+        }
+        if (highlightFailure != null) {
+            statusText.append(" no highlighting");
+        }
+    }
+
+    // draws the screen, and again whenever the highlighter thread delivers rows, the save
+    // status changes or a search is done, until a key is waiting to be read. Keys that come
+    // faster than they are drawn are coalesced: while keys are waiting, no frame is drawn
+    // until FRAME_INTERVAL_NANOS after the last one.
+    private static void refreshScreenUntilKey() throws IOException {
+        if (keyboard.available() > 0 &&
+            System.nanoTime() - lastFrameNanos < FRAME_INTERVAL_NANOS) {
+            // the keys waiting are handled first, the frame after them shows them all
+            return;
+        }
+        lastFrameNanos = System.nanoTime();
+        refreshScreen();
+        while ((highlightPending() || saver != null || searching != null) &&
+            keyboard.available() == 0) {
+            if (awaitHighlight(HIGHLIGHT_WAIT_MILLIS) | updateSaveStatus() | updateSearch()) {
+                refreshScreen();
+            }
         }
     }
 
-    private static void refreshScreen() {
+    private static void refreshScreen() throws IOException {
+        updateSearch();
         editorScroll();
         //editorUpdateSyntax();
-        StringBuilder builder = new StringBuilder();
-        builder.append("\033[?25l"); // hides the cursor
-        //builder.append("\033[2J"); // clears entire screen
-        builder.append("\033[H");  // moves cursor to row 1 column 1 (top left)
-        builder.append("\033[K"); // clears line
+        awaitHighlight(0);
+        updateSaveStatus();
+        requestHighlight(yOffset, Math.min(yOffset + ROWS, document.lineCount()) - 1);
+        if (highlightPending()) {
+            // a short wait saves drawing stale highlights when the highlighter thread is quick
+            awaitHighlight(HIGHLIGHT_WAIT_MILLIS);
+        }
 
+        if (screenCells.length != ROWS + 1 || rowCells.length != COLUMNS) {
+            screenCells = new int[ROWS + 1][COLUMNS];
+            screenLengths = new int[ROWS + 1];
+            spareCells = new int[ROWS][];
+            screenFileRows = new int[ROWS];
+            Arrays.fill(screenFileRows, -1);
+            screenVersions = new long[ROWS];
+            screenHighlights = new byte[ROWS][];
+            screenXOffsets = new int[ROWS];
+            screenSearches = new Object[ROWS];
+            Arrays.fill(screenLengths, -1);
+            rowCells = new int[COLUMNS];
+            screenYOffset = -1;
+        }
+        visibleDeadline = System.nanoTime() + VISIBLE_REGEX_NANOS;
+        terminal.append(HIDE_CURSOR);
+        if (screenYOffset >= 0 && yOffset != screenYOffset &&
+            Math.abs(yOffset - screenYOffset) < ROWS) {
+            scrollScreen(yOffset - screenYOffset);
+        }
+        screenYOffset = yOffset;
         for (int r = 0; r < ROWS; r++) {
             int fileRow = r + yOffset;
-            if (fileRow >= content.size()) {
-                // prints ~ for empty line
-                builder.append("~");
-            } else {
-                // prints content
-                String line = content.get(fileRow);
-                int drawLen = line.length() - xOffset;
-                if (drawLen < 0) {
-                    drawLen = 0;
-                }
-                if (drawLen > COLUMNS) {
-                    drawLen = COLUMNS;
-                }
-                if (drawLen > 0) {
-                    int currentColor = -1;
-                    List<HIGHLIGHT> highlightedLine = highlightedContent.get(fileRow);
-                    for (int i = xOffset; i < xOffset + drawLen; i++) {
-                        if (Character.isISOControl(line.charAt(i))) {
-                            // handle non-printable chars
-                            int sym = (line.charAt(i) <= 26 ? '@' + line.charAt(i) : '?');
-                            builder.append("\033[7m"); // inverts color
-                            builder.append((char) sym);
-                            builder.append("\033[m"); // turns off invert color
-                            if (currentColor != -1) {
-                                builder.append(String.format("\033[%dm", currentColor));
-                            }
-                        } else if (highlightedLine.get(i) == HIGHLIGHT.HL_NORMAL) {
-                            if (currentColor != -1) {
-                                builder.append("\033[39m");
-                                currentColor = -1;
-                            }
-                        } else {
-                            int color = editorSyntaxToColor(highlightedLine.get(i));
-                            if (color != currentColor) {
-                                currentColor = color;
-                                builder.append(String.format("\033[%dm", color));
-                            }
-                        }
-                        builder.append(line.charAt(i));
-                    }
-                    builder.append("\033[39m"); // resets color
-                    //builder.append(line, xOffset, xOffset + drawLen);
+            byte[] highlight = fileRow < document.lineCount() ? cachedHighlight(fileRow) : null;
+            if (!isDrawn(r, fileRow, highlight)) {
+                diffRow(r, drawRow(fileRow));
+                screenFileRows[r] = partialMatches ? -1 : fileRow;
+                screenVersions[r] = highlightVersion;
+                screenHighlights[r] = highlight;
+                screenXOffsets[r] = xOffset;
+                screenSearches[r] = drawnSearch();
+            }
+        }
+        int statusLength = statusCells(statusMessage, 0);
+        statusLength = statusCells(searchStatus(), statusLength);
+        diffRow(ROWS, statusLength);
+
+        int cursorRow = cy - yOffset + 1;
+        int cursorCol = cx - xOffset + 1;
+        if (terminal.length() == HIDE_CURSOR.length && cursorRow == screenCursorRow &&
+            cursorCol == screenCursorCol) {
+            // the screen is up to date
+            terminal.discard();
+            return;
+        }
+        appendCursorMove(cursorRow, cursorCol);
+        terminal.append(SHOW_CURSOR);
+        screenCursorRow = cursorRow;
+        screenCursorCol = cursorCol;
+
+        terminal.flush();
+        framesDrawn++;
+    }
+
+    // Scrolls the text rows of the screen up by delta rows, down if it is negative, with the
+    // terminal's scroll commands inside a scroll region leaving out the status bar, and moves
+    // their cells along, so only the rows scrolled in, which are blank, are drawn.
+    private static void scrollScreen(int delta) {
+        // scroll region: the text rows
+        terminal.append(CSI).appendNumber(1).append(';').appendNumber(ROWS).append('r');
+        if (delta > 0) {
+            terminal.append(CSI).appendNumber(delta).append('S'); // scrolls up
+        } else {
+            terminal.append(CSI).appendNumber(-delta).append('T'); // scrolls down
+        }
+        terminal.append(RESET_SCROLL_REGION);
+
+        // the rows scrolled out are reused for the ones scrolled in, which are blank
+        int from = delta > 0 ? 0 : ROWS + delta;
+        int count = Math.abs(delta);
+        System.arraycopy(screenCells, from, spareCells, 0, count);
+        moveRows(screenCells, delta);
+        int exposed = delta > 0 ? ROWS - delta : 0;
+        System.arraycopy(spareCells, 0, screenCells, exposed, count);
+        moveRows(screenLengths, delta);
+        Arrays.fill(screenLengths, exposed, exposed + count, 0);
+        moveRows(screenFileRows, delta);
+        Arrays.fill(screenFileRows, exposed, exposed + count, -1);
+        moveRows(screenVersions, delta);
+        moveRows(screenHighlights, delta);
+        moveRows(screenXOffsets, delta);
+        moveRows(screenSearches, delta);
+    }
+
+    // moves the entries of an array kept per text row up by delta, down if it is negative
+    private static void moveRows(Object rows, int delta) {
+        if (delta > 0) {
+            System.arraycopy(rows, delta, rows, 0, ROWS - delta);
+        } else {
+            System.arraycopy(rows, 0, rows, -delta, ROWS + delta);
+        }
+    }
+
+    // whether text row r of the screen was drawn from fileRow as it is now
+    private static boolean isDrawn(int r, int fileRow, byte[] highlight) {
+        return screenFileRows[r] == fileRow && screenHighlights[r] == highlight &&
+            screenXOffsets[r] == xOffset && screenSearches[r] == drawnSearch() &&
+            firstRowEditedSince(screenVersions[r]) > fileRow;
+    }
+
+    // the search whose matches are drawn, null if there is none
+    private static Object drawnSearch() {
+        return searchRegex != null ? searchRegex : searchPattern;
+    }
+
+    // moves the cursor to a row and col counted from 1
+    private static void appendCursorMove(int row, int col) {
+        terminal.append(CSI).appendNumber(row).append(';').appendNumber(col).append('H');
+    }
+
+    // copies the chars of text fitting on the screen into rowCells from at on, returns the
+    // index after them
+    private static int statusCells(CharSequence text, int at) {
+        for (int i = 0; i < text.length() && at < COLUMNS; i++) {
+            rowCells[at++] = text.charAt(i);
+        }
+        return at;
+    }
+
+    // fills rowCells with the visible part of a file row, or "~" past the end of the file, and
+    // returns the number of cells, partialMatches tells whether matches may be missing
+    private static int drawRow(int fileRow) {
+        partialMatches = false;
+        if (fileRow >= document.lineCount()) {
+            rowCells[0] = '~';
+            return 1;
+        }
+        byte[] highlightedLine = cachedHighlight(fileRow);
+        partialMatches = !findVisibleMatches(fileRow);
+        int drawLen = document.lineLength(fileRow) - xOffset;
+        if (drawLen < 0) {
+            drawLen = 0;
+        }
+        if (drawLen > COLUMNS) {
+            drawLen = COLUMNS;
+        }
+        if (drawLen == 0) {
+            return 0;
+        }
+        // only the visible part of the row is copied
+        if (lineBuffer.length < drawLen) {
+            lineBuffer = new char[Math.max(drawLen, lineBuffer.length * 2)];
+        }
+        char[] line = lineBuffer;
+        document.getChars(fileRow, xOffset, xOffset + drawLen, line, 0);
+        int currentColor = 0;
+        for (int i = xOffset; i < xOffset + drawLen; i++) {
+            char ch = line[i - xOffset];
+            byte highlight = visibleMatches[i - xOffset] ? HIGHLIGHT.HL_MATCH.id :
+                highlightAt(highlightedLine, i);
+            if (Character.isISOControl(ch)) {
+                // non-printable chars are drawn inverted, in the color before them
+                int sym = (ch <= 26 ? '@' + ch : '?');
+                rowCells[i - xOffset] = sym | currentColor << 16 | CELL_INVERTED;
+                continue;
+            }
+            currentColor = HIGHLIGHT_COLORS[highlight];
+            rowCells[i - xOffset] = ch | currentColor << 16;
+        }
+        return drawLen;
+    }
+
+    // Writes the cells of rowCells that differ from those of screen row r, and keeps them as
+    // its cells. The cells from the first to the last differing one are written, a row that
+    // got shorter is cleared after them. Chars from U+0300 on may be combining or wide, taking
+    // a number of columns other than one, a row holding them is written whole.
+    private static void diffRow(int r, int length) {
+        int[] previous = screenCells[r];
+        int previousLength = screenLengths[r];
+        int from = 0;
+        int to = length;
+        boolean clear = true;
+        if (previousLength >= 0 && isNarrow(previous, previousLength) &&
+            isNarrow(rowCells, length)) {
+            int common = Math.min(length, previousLength);
+            while (from < common && previous[from] == rowCells[from]) {
+                from++;
+            }
+            if (length == previousLength) {
+                while (to > from && previous[to - 1] == rowCells[to - 1]) {
+                    to--;
+                }
+                if (from == to) {
+                    return;
                 }
+                clear = false;
+            } else {
+                clear = length < previousLength;
             }
-            builder.append("\r\n");
-            builder.append("\033[K"); // clears line
         }
+        appendCursorMove(r + 1, from + 1);
+        appendCells(rowCells, from, to);
+        // after the last column the cursor stays on it, a clear would erase it
+        if (clear && to < COLUMNS) {
+            terminal.append(CLEAR_LINE);
+        }
+        screenCells[r] = rowCells;
+        screenLengths[r] = length;
+        rowCells = previous;
+    }
+
+    private static boolean isNarrow(int[] cells, int length) {
+        for (int i = 0; i < length; i++) {
+            if ((char) cells[i] >= '\u0300') {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        builder.append(statusMessage);
+    // appends the cells [from, to) of a row, starting and ending in the default color
+    private static void appendCells(int[] cells, int from, int to) {
+        int color = 0;
+        for (int i = from; i < to; i++) {
+            int cell = cells[i];
+            int cellColor = (cell >>> 16) & 0xff;
+            if (cellColor != color) {
+                terminal.append(COLOR_ESCAPES[cellColor]);
+                color = cellColor;
+            }
+            char c = (char) cell;
+            if ((cell & CELL_INVERTED) != 0) {
+                terminal.append(INVERT).append(c).append(INVERT_OFF);
+            } else if (Character.isHighSurrogate(c) && i + 1 < to &&
+                Character.isLowSurrogate((char) cells[i + 1])) {
+                terminal.appendCodePoint(Character.toCodePoint(c, (char) cells[++i]));
+            } else {
+                terminal.append(Character.isSurrogate(c) ? '?' : c);
+            }
+        }
+        if (color != 0) {
+            terminal.append(COLOR_ESCAPES[0]);
+        }
+    }
 
-        builder.append(String.format("\033[%d;%dH", cy - yOffset + 1,
-            cx - xOffset + 1));  // moves the cursor
-        builder.append("\033[?25h"); // shows the cursor
+    // highlight to draw at col of a row, highlightedLine is its cached highlight
+    private static byte highlightAt(byte[] highlightedLine, int col) {
+        if (highlightedLine == null || col >= highlightedLine.length) {
+            return HIGHLIGHT.HL_NORMAL.id;
+        }
+        return highlightedLine[col];
+    }
 
-        System.out.print(builder);
+    // Marks the visible cols of row covered by a match of the search in visibleMatches. Only
+    // the visible part of the row, and a query length around it, is searched for a literal.
+    // A regex is matched on the whole row, until the frame's time for it is up, then false is
+    // returned.
+    private static boolean findVisibleMatches(int row) {
+        if (visibleMatches.length < COLUMNS) {
+            visibleMatches = new boolean[COLUMNS];
+        }
+        Arrays.fill(visibleMatches, false);
+        if (searchRegex != null) {
+            int length = document.lineLength(row);
+            if (searchBuffer.length < length) {
+                searchBuffer = new char[Math.max(length, searchBuffer.length * 2)];
+            }
+            document.getChars(row, 0, length, searchBuffer, 0);
+            Matcher matcher = searchRegex.matcher(visibleRow.set(searchBuffer, length));
+            try {
+                while (matcher.find() && matcher.start() < xOffset + COLUMNS) {
+                    int start = Math.max(matcher.start(), xOffset) - xOffset;
+                    int end = Math.min(matcher.end() - xOffset, COLUMNS);
+                    if (start < end) {
+                        Arrays.fill(visibleMatches, start, end, true);
+                    }
+                }
+            } catch (CancellationException e) {
+                // the rest of the row is drawn without matches
+                return false;
+            }
+            return true;
+        }
+        if (searchPattern == null) {
+            return true;
+        }
+        int length = searchPattern.length();
+        int from = Math.max(0, xOffset - length + 1);
+        int to = Math.min(document.lineLength(row), xOffset + COLUMNS + length - 1);
+        if (to - from < length) {
+            return true;
+        }
+        if (searchBuffer.length < to - from) {
+            searchBuffer = new char[Math.max(to - from, searchBuffer.length * 2)];
+        }
+        document.getChars(row, from, to, searchBuffer, 0);
+        int at = 0;
+        while ((at = searchPattern.indexOf(searchBuffer, at, to - from)) >= 0) {
+            int start = Math.max(from + at, xOffset) - xOffset;
+            int end = Math.min(from + at + length - xOffset, COLUMNS);
+            Arrays.fill(visibleMatches, start, end, true);
+            at++;
+        }
+        return true;
     }
 
     private static void editorScroll() {
@@ -972,16 +4845,59 @@ public class Main {
         }
     }
 
+    // A single stty process saves the settings, switches to raw mode and tells the window
+    // size, starting a process takes milliseconds.
     public static void enableRawMode() {
-        originalTerminalSettings = exec("/usr/bin/env", "stty", "-g");
-        exec("/usr/bin/env", "stty", "-brkint", "-icrnl", "-inpck", "-istrip", "-ixon");
-        exec("/usr/bin/env", "stty", "-opost");
-        exec("/usr/bin/env", "stty", "cs8");
-        exec("/usr/bin/env", "stty", "-echo", "-icanon", "-iexten", "-isig");
+        String[] output = exec("/bin/sh", "-c", "stty -g && " +
+            "stty -brkint -icrnl -inpck -istrip -ixon -opost cs8 -echo -icanon -iexten -isig && " +
+            "stty size").split("\n");
+        originalTerminalSettings = output[0];
+        if (output.length > 1) {
+            windowSize = output[1];
+        }
+        writeToTerminal(BRACKETED_PASTE_ON);
+    }
+
+    // On SIGWINCH the terminal is asked for its size, readKey reads the answer. The handler
+    // runs on a thread of its own, the editor's state is only changed by the main thread.
+    // sun.misc.Signal is the only way to get the signal, so javac warns about internal API
+    // here; the warning is expected.
+    private static void watchWindowSize() {
+        try {
+            Signal.handle(new Signal("WINCH"), signal -> {
+                sizeQueries.incrementAndGet();
+                try {
+                    terminal.write(REPORT_SIZE);
+                } catch (IOException e) {
+                    // the terminal is gone
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            // no SIGWINCH here, the size stays as it was at startup
+        }
+    }
+
+    // called with the size the terminal reported
+    private static void resizeScreen(int rows, int columns) {
+        ROWS = rows - 1;
+        COLUMNS = columns;
+        if (highlightedRows.length < highlightSlots()) {
+            allocateHighlights();
+            editorUpdateHighlight();
+        }
+    }
+
+    private static void writeToTerminal(byte[] sequence) {
+        terminal.append(sequence);
+        try {
+            terminal.flush();
+        } catch (IOException e) {
+            // the terminal is gone
+        }
     }
 
     public static int[] getWindowSize() {
-        var output = exec("/usr/bin/env", "stty", "size");
+        var output = windowSize != null ? windowSize : exec("/usr/bin/env", "stty", "size");
         return Arrays.stream(output.split(" ")).mapToInt(Integer::parseInt).toArray();
     }
 
@@ -991,14 +4907,7 @@ public class Main {
 
         try {
             Process process = pb.start();
-            var stdoutBuffer = new ByteArrayOutputStream();
-            var stdout = process.getInputStream();
-            var readByte = stdout.read();
-            while (readByte != -1) {
-                stdoutBuffer.write(readByte);
-                readByte = stdout.read();
-            }
-            return stdoutBuffer.toString().trim();
+            return new String(process.getInputStream().readAllBytes()).trim();
         } catch (IOException e) {
             System.out.println("Error executing " + cmd);
             throw new RuntimeException(e);
@@ -1009,6 +4918,7 @@ public class Main {
         if (originalTerminalSettings == null) {
             return;
         }
+        writeToTerminal(BRACKETED_PASTE_OFF);
         exec("/usr/bin/env", "stty", originalTerminalSettings);
     }
 }
\ No newline at end of file